@@ -0,0 +1,100 @@
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class is a small harness measuring how many operations per second a piece of code sustains.
+ * Every benchmark runs for a warm-up period first, so the JIT has compiled the code being measured,
+ * and is then measured for a fixed time on the requested number of threads.
+ * <p>
+ * Durations are set with -Dbench.warmupSeconds (default 2) and -Dbench.seconds (default 5).
+ */
+class Bench {
+    private static final long WARMUP_NANOS = Long.getLong("bench.warmupSeconds", 2) * 1_000_000_000L;
+    private static final long MEASURE_NANOS = Long.getLong("bench.seconds", 5) * 1_000_000_000L;
+    //Operations are run in batches between two looks at the clock, growing until a batch takes this long
+    private static final long BATCH_NANOS = 10_000;
+    private static final int MAX_BATCH = 1024;
+
+    //Results of the operations are folded in here so the JIT cannot drop the work producing them
+    static volatile long sink;
+
+    /**
+     * A single operation being measured.
+     */
+    interface Body {
+        /**
+         * Runs the operation once.
+         *
+         * @param thread The index of the thread running it, from 0.
+         * @param i      How many times this thread has run it before.
+         * @return Any value depending on the work done.
+         */
+        long run(int thread, long i) throws Exception;
+    }
+
+    /**
+     * Warms up and measures an operation, then prints its throughput.
+     *
+     * @param name    The name printed with the result.
+     * @param threads The number of threads running the operation at once.
+     * @param body    The operation.
+     * @return The measured operations per second.
+     */
+    static double run(String name, int threads, Body body) throws Exception {
+        measure(threads, body, WARMUP_NANOS);
+        double opsPerSecond = measure(threads, body, MEASURE_NANOS);
+        System.out.printf(Locale.ROOT, "%-44s %3d threads %,16.1f ops/s%n", name, threads, opsPerSecond);
+        return opsPerSecond;
+    }
+
+    private static double measure(int threads, Body body, long nanos) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long[] ops = new long[threads];
+        long[] elapsed = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                long acc = 0;
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    long deadline = begin + nanos;
+                    long now = begin;
+                    int batch = 1;
+                    do {
+                        long last = now;
+                        for (int k = 0; k < batch; k++) {
+                            acc += body.run(thread, n++);
+                        }
+                        now = System.nanoTime();
+                        if (now - last < BATCH_NANOS && batch < MAX_BATCH) {
+                            batch *= 2;
+                        }
+                    } while (now < deadline);
+                    elapsed[thread] = now - begin;
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                }
+                ops[thread] = n;
+                sink += acc;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        double total = 0;
+        for (int t = 0; t < threads; t++) {
+            total += ops[t] * 1e9 / elapsed[t];
+        }
+        return total;
+    }
+}
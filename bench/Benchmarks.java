@@ -0,0 +1,165 @@
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * This program measures the parts of the server a change is most likely to speed up or slow down:
+ * parsing commands, looking accounts up, running Transfer and Convert with and without contention,
+ * printing the State of a large book, and the fixed-point arithmetic of amounts. Commands go through
+ * {@link Server.Talk#execute} exactly as they do for a client, only without a socket.
+ * <p>
+ * Groups are chosen by name on the command line: parse, lookup, commands, state and amounts. All of them run
+ * when none is given. The server options, e.g. -Dserver.store=offheap, apply as usual.
+ */
+public class Benchmarks {
+    private static final List<String> GROUPS = Arrays.asList("parse", "lookup", "commands", "state", "amounts");
+    //Threads used by the multi-threaded benchmarks
+    private static final int THREADS = Integer.getInteger("bench.threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    //Lookups cycle through this many random account numbers, must be a power of two
+    private static final int KEYS = 1 << 16;
+    //A parser, a discarded output and a limiter per thread, as every connection has its own
+    private static final CommandParser[] parsers = new CommandParser[THREADS];
+    private static final Response[] outputs = new Response[THREADS];
+    private static final Admission.Limiter[] limiters = new Admission.Limiter[THREADS];
+
+    static {
+        for (int t = 0; t < THREADS; t++) {
+            parsers[t] = new CommandParser();
+            outputs[t] = new TextResponse(new PrintWriter(OutputStream.nullOutputStream()));
+            limiters[t] = Admission.newLimiter();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        //Setting US locale to force using '.' as a decimal part separator instead of ','
+        Locale.setDefault(new Locale("en", "US"));
+        Set<String> groups = new HashSet<>(args.length == 0 ? GROUPS : Arrays.asList(args));
+        if (groups.contains("parse")) {
+            parse();
+        }
+        if (groups.contains("lookup")) {
+            lookup();
+        }
+        if (groups.contains("commands")) {
+            commands();
+        }
+        if (groups.contains("state")) {
+            state();
+        }
+        if (groups.contains("amounts")) {
+            amounts();
+        }
+    }
+
+    /**
+     * Parses one line of every kind of command.
+     */
+    private static void parse() throws Exception {
+        String[] lines = {"Open 123", "Rate 12.5", "State", "Transfer 1 2 (3.5,4)", "Convert 7 (1,0.25)",
+                "Close", "Withdraw 1 (2,3)", "Transfer 1 2 (1e3,2)"};
+        for (String line : lines) {
+            Bench.run("parse \"" + line + "\"", 1, (thread, i) -> parsers[thread].parse(line).ordinal());
+        }
+        //The binary frame of "Transfer 1 2 (3.5,4)"
+        ByteBuffer frame = ByteBuffer.allocate(25);
+        frame.put(CommandParser.Command.TRANSFER.getOpcode()).putInt(1).putInt(2).putLong(3_500_000)
+                .putLong(4 * Fixed.ONE);
+        Bench.run("decode binary Transfer", 1, (thread, i) -> parsers[thread].decode(frame.clear()).ordinal());
+    }
+
+    /**
+     * Looks up random existing accounts in books of growing size, in both stores.
+     */
+    private static void lookup() throws Exception {
+        for (int size : new int[]{1_000, 100_000, 1_000_000}) {
+            int[] keys = new int[KEYS];
+            Random random = new Random(size);
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = random.nextInt(size);
+            }
+            AccountStore[] stores = {new HeapAccountStore(false), new OffHeapAccountStore(size)};
+            for (AccountStore store : stores) {
+                for (int accNum = 0; accNum < size; accNum++) {
+                    store.claim();
+                    store.open(accNum, 1);
+                }
+                String name = "lookup " + store.getClass().getSimpleName() + " " + size;
+                Bench.run(name, 1, (thread, i) -> store.exists(keys[(int) i & (KEYS - 1)]) ? 1 : 0);
+                Bench.run(name, THREADS, (thread, i) -> store.exists(keys[(int) i & (KEYS - 1)]) ? 1 : 0);
+            }
+        }
+    }
+
+    /**
+     * Runs Transfer and Convert with every thread on the same accounts, then with each thread on its own.
+     */
+    private static void commands() throws Exception {
+        //Accounts 0 and 1 are shared, every thread also owns the pair 2 + 2t and 3 + 2t
+        execute(0, "open 0");
+        execute(0, "open 1");
+        for (int t = 0; t < THREADS; t++) {
+            execute(0, "open " + (2 + 2 * t));
+            execute(0, "open " + (3 + 2 * t));
+        }
+        String[] shared = new String[THREADS];
+        String[] own = new String[THREADS];
+        Arrays.fill(shared, "transfer 0 1 (1,1)");
+        for (int t = 0; t < THREADS; t++) {
+            own[t] = "transfer " + (2 + 2 * t) + " " + (3 + 2 * t) + " (1,1)";
+        }
+        Bench.run("transfer contended", THREADS, (thread, i) -> execute(thread, shared[thread]));
+        Bench.run("transfer disjoint", THREADS, (thread, i) -> execute(thread, own[thread]));
+        Arrays.fill(shared, "convert 0 (1,1)");
+        for (int t = 0; t < THREADS; t++) {
+            own[t] = "convert " + (2 + 2 * t) + " (1,1)";
+        }
+        Bench.run("convert contended", THREADS, (thread, i) -> execute(thread, shared[thread]));
+        Bench.run("convert disjoint", THREADS, (thread, i) -> execute(thread, own[thread]));
+    }
+
+    /**
+     * Prints the State of books of growing size.
+     */
+    private static void state() throws Exception {
+        int opened = 0;
+        for (int size : new int[]{1_000, 100_000, 1_000_000}) {
+            //Numbers well away from the accounts the commands group opens
+            for (; opened < size; opened++) {
+                execute(0, "open " + (10_000_000 + opened));
+            }
+            Bench.run("state " + size + " accounts", 1, (thread, i) -> execute(thread, "state"));
+        }
+    }
+
+    /**
+     * Converts amounts the way Convert does, next to the same conversion made with BigDecimal, and formats
+     * them the way State does.
+     */
+    private static void amounts() throws Exception {
+        long rate = 1_234_567;
+        BigDecimal bigRate = BigDecimal.valueOf(rate, Fixed.DIGITS);
+        Bench.run("convert fixed-point", 1, (thread, i) ->
+                Account.convertedArian(i, i, rate) + Account.convertedPres(i, i, rate));
+        Bench.run("convert BigDecimal", 1, (thread, i) -> {
+            BigDecimal amount = BigDecimal.valueOf(i, Fixed.DIGITS);
+            return amount.divide(bigRate, Fixed.DIGITS, RoundingMode.HALF_EVEN).subtract(amount).unscaledValue()
+                    .longValue() + amount.multiply(bigRate).setScale(Fixed.DIGITS, RoundingMode.HALF_EVEN)
+                    .subtract(amount).unscaledValue().longValue();
+        });
+        char[] chars = new char[Fixed.MAX_LENGTH];
+        Bench.run("format fixed-point", 1, (thread, i) -> Fixed.format(i * 1_250_000, chars));
+    }
+
+    private static long execute(int thread, String line) throws Exception {
+        return Server.Talk.execute(parsers[thread], line, outputs[thread], limiters[thread]) ? 1 : 0;
+    }
+}
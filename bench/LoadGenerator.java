@@ -0,0 +1,224 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * This program loads a running server the way many brokers would: a number of clients connect over
+ * loopback, each sending Transfer and Convert commands one at a time and waiting for every response.
+ * It reports the throughput of all clients together and the latency of single commands.
+ * <p>
+ * Options are passed as system properties: load.clients (default 16), load.seconds (default 10),
+ * load.accounts (default 1000), load.convertPercent (default 20), load.host (default localhost). The
+ * clients connect to server.port (default 4242), the option the server takes its port from.
+ * With -Dload.binary=true the clients send their commands in the binary protocol instead of text.
+ * With -Dload.embedded=true the server is started in the same JVM first, configured by the usual
+ * server options.
+ */
+public class LoadGenerator {
+    //The same property the server listens on, so an embedded server and the clients always agree
+    private static final int PORT = Integer.getInteger("server.port", 4242);
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int CLIENTS = Integer.getInteger("load.clients", 16);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 10);
+    private static final int ACCOUNTS = Integer.getInteger("load.accounts", 1000);
+    private static final int CONVERT_PERCENT = Integer.getInteger("load.convertPercent", 20);
+    private static final boolean BINARY = Boolean.getBoolean("load.binary");
+
+    public static void main(String[] args) throws Exception {
+        //Setting US locale to force using '.' as a decimal part separator instead of ','
+        Locale.setDefault(new Locale("en", "US"));
+        if (Boolean.getBoolean("load.embedded")) {
+            startServer();
+        }
+        openAccounts();
+        Client[] clients = new Client[CLIENTS];
+        Thread[] threads = new Thread[CLIENTS];
+        long deadline = System.nanoTime() + SECONDS * 1_000_000_000L;
+        for (int c = 0; c < CLIENTS; c++) {
+            clients[c] = new Client(c, deadline);
+            threads[c] = new Thread(clients[c], "client-" + c);
+            threads[c].start();
+        }
+        long count = 0;
+        for (int c = 0; c < CLIENTS; c++) {
+            threads[c].join();
+            if (clients[c].failure != null) {
+                throw clients[c].failure;
+            }
+            count += clients[c].count;
+        }
+        long[] latencies = new long[(int) count];
+        int n = 0;
+        for (Client c : clients) {
+            System.arraycopy(c.latencies, 0, latencies, n, c.count);
+            n += c.count;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("%d clients, %d accounts, %d%% converts, %s protocol%n", CLIENTS, ACCOUNTS,
+                CONVERT_PERCENT, BINARY ? "binary" : "text");
+        System.out.printf("%,.0f ops/s%n", count / (double) SECONDS);
+        System.out.printf("latency us: p50 %.1f  p99 %.1f  p999 %.1f  max %.1f%n", percentile(latencies, 0.5),
+                percentile(latencies, 0.99), percentile(latencies, 0.999), percentile(latencies, 1));
+        //The threads of an embedded server would keep running otherwise
+        System.exit(0);
+    }
+
+    /**
+     * Starts the server in a background thread and waits until it accepts connections.
+     */
+    private static void startServer() throws InterruptedException {
+        Thread server = new Thread(() -> {
+            try {
+                Server.main(new String[0]);
+            } catch (Exception e) {
+                System.out.println("Error: server " + e);
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        while (true) {
+            try {
+                new Socket(HOST, PORT).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Opens the accounts the clients move money between. Accounts left by an earlier run are reused.
+     */
+    private static void openAccounts() throws IOException {
+        try (Socket socket = new Socket(HOST, PORT)) {
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            for (int accNum = 0; accNum < ACCOUNTS; accNum++) {
+                out.println("open " + accNum);
+            }
+            out.println("close");
+            out.flush();
+            for (int accNum = 0; accNum <= ACCOUNTS; accNum++) {
+                in.readLine();
+            }
+        }
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, i)] / 1000.0;
+    }
+
+    /**
+     * A single client sending one command at a time until the deadline.
+     */
+    private static final class Client implements Runnable {
+        private final Random random;
+        private final long deadline;
+        //Latency of every command in nanoseconds
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private Exception failure;
+
+        Client(int index, long deadline) {
+            this.random = new Random(index);
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            if (BINARY) {
+                runBinary();
+                return;
+            }
+            try (Socket socket = new Socket(HOST, PORT)) {
+                socket.setTcpNoDelay(true);
+                PrintWriter out = new PrintWriter(socket.getOutputStream());
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                long now = System.nanoTime();
+                while (now < deadline) {
+                    int from = random.nextInt(ACCOUNTS);
+                    if (random.nextInt(100) < CONVERT_PERCENT) {
+                        out.println("convert " + from + " (1,0.5)");
+                    } else {
+                        int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        out.println("transfer " + from + " " + to + " (1,0.5)");
+                    }
+                    out.flush();
+                    if (in.readLine() == null) {
+                        throw new IOException("The server closed the connection");
+                    }
+                    now = record(now);
+                }
+                out.println("close");
+                out.flush();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Sends the same commands as {@link #run()} in frames of the binary protocol.
+         */
+        private void runBinary() {
+            try (Socket socket = new Socket(HOST, PORT)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.writeByte(CommandParser.GREETING);
+                byte[] response = new byte[64];
+                long now = System.nanoTime();
+                while (now < deadline) {
+                    int from = random.nextInt(ACCOUNTS);
+                    if (random.nextInt(100) < CONVERT_PERCENT) {
+                        out.writeInt(21);
+                        out.writeByte(CommandParser.Command.CONVERT.getOpcode());
+                        out.writeInt(from);
+                    } else {
+                        int to = (from + 1 + random.nextInt(ACCOUNTS - 1)) % ACCOUNTS;
+                        out.writeInt(25);
+                        out.writeByte(CommandParser.Command.TRANSFER.getOpcode());
+                        out.writeInt(from);
+                        out.writeInt(to);
+                    }
+                    out.writeLong(Fixed.ONE);
+                    out.writeLong(Fixed.ONE / 2);
+                    out.flush();
+                    in.readFully(response, 0, in.readInt());
+                    now = record(now);
+                }
+                out.writeInt(1);
+                out.writeByte(CommandParser.Command.CLOSE.getOpcode());
+                out.flush();
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Records the latency of a command sent at the given time.
+         *
+         * @return The current time.
+         */
+        private long record(long sent) {
+            long end = System.nanoTime();
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = end - sent;
+            return end;
+        }
+    }
+}
@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class handles any individual account.
  * Each account has an account number and amount of arian and pres associated with it.
@@ -5,22 +9,34 @@
  * @author Eduard Zakarian
  */
 public class Account implements Comparable<Account> {
-    private Integer accNum; //Class variable because of its compareTo() method
-    private float arian;
-    private float pres;
+    private final int accNum;
+    //Both balances are kept in a single immutable snapshot so they always change together
+    private final AtomicReference<Balance> balance = new AtomicReference<>(Balance.ZERO);
     //A lock which will lead to a correct concurrent workflow of a program.
-    private boolean lock;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Creates a new account with both currencies set to 0, opened in the given epoch. Snapshots of
+     * earlier epochs do not see the account.
+     *
+     * @param accNum An account number to be associated with the account.
+     * @param epoch  The epoch the opening entered the gate in.
+     */
+    public Account(int accNum, long epoch) {
+        this.accNum = accNum;
+        balance.set(new Balance(0, 0, epoch, null));
+    }
 
     /**
-     * Creates a new account with the specified account number and both currencies set to 0.
+     * Creates an account with balances restored from a checkpoint.
      *
-     * @param accNum An account number t be associated with the account.
+     * @param accNum An account number to be associated with the account.
+     * @param arian  The balance of arian.
+     * @param pres   The balance of pres.
      */
-    public Account(int accNum) {
+    public Account(int accNum, long arian, long pres) {
         this.accNum = accNum;
-        arian = 0;
-        pres = 0;
-        lock = false;
+        balance.set(new Balance(arian, pres, 0, null));
     }
 
     /**
@@ -28,62 +44,181 @@ public class Account implements Comparable<Account> {
      *
      * @return An integer containing the account number.
      */
-    public Integer getAccNum() {
+    public int getAccNum() {
         return accNum;
     }
 
     /**
-     * Retrieves the balance of arian.
+     * Retrieves both balances of the account as they were in a snapshot. The snapshot must still be
+     * held, see {@link EpochGate#snapshot()}.
      *
-     * @return A float representing the balance of arian.
+     * @param epoch The epoch of the snapshot.
+     * @return The balance holding every change stamped with the given epoch or an earlier one,
+     *         or null if the account was opened after the snapshot.
      */
-    public synchronized float getArian() {
-        return arian;
+    public Balance getBalance(long epoch) {
+        Balance b = balance.get();
+        while (b != null && b.epoch > epoch) {
+            b = b.previous;
+        }
+        return b;
     }
 
     /**
-     * Change the value of arian.
+     * Checks whether the specified amounts can be added to the balances without going out of range.
+     * The answer only holds for as long as nothing else changes the account, e.g. while its lock is held.
      *
-     * @param arian A new value.
+     * @param arian An amount of arian to add.
+     * @param pres  An amount of pres to add.
+     * @return true if both balances would stay in range.
      */
-    public synchronized void setArian(float arian) {
-        this.arian = arian;
+    public boolean canAdd(long arian, long pres) {
+        Balance b = balance.get();
+        return Fixed.canAdd(b.arian, arian) && Fixed.canAdd(b.pres, pres);
     }
 
     /**
-     * Retrives the balance of pres.
+     * Adds the specified amounts to the balances in one atomic step. Negative amounts withdraw funds,
+     * and a Convert adds what {@link #convertedArian} and {@link #convertedPres} work out.
+     * The update is a compare-and-set retry loop, so it never blocks and is safe to call with or
+     * without holding the account's lock.
      *
-     * @return A float representing the balance of pres.
+     * @param arian  An amount of arian to add.
+     * @param pres   An amount of pres to add.
+     * @param epoch  The epoch the change entered the gate in.
+     * @param oldest The oldest snapshot epoch still being read.
+     * @throws ArithmeticException If a balance would go out of range; the account is left unchanged.
      */
-    public synchronized float getPres() {
-        return pres;
+    public void add(long arian, long pres, long epoch, long oldest) {
+        Balance current;
+        do {
+            current = settled();
+        } while (!balance.compareAndSet(current, following(current, arian, pres, epoch, oldest)));
     }
 
     /**
-     * Change the value of pres.
+     * Adds the specified amounts to the balances like {@link #add}, without taking the lock of the account
+     * but never while another thread holds it. A thread holding the lock may have checked the balances with
+     * {@link #canAdd} and counts on them staying as they are, which {@link #lockChecked()} makes sure of.
+     * <p>
+     * The change is appended to the log between the check and the update. Meanwhile the balance is replaced
+     * by an equal one marked as being appended, which every other change and lock waits for, so the log gets
+     * the changes of the account in the order they are made.
      *
-     * @param pres A new value.
+     * @param arian  An amount of arian to add.
+     * @param pres   An amount of pres to add.
+     * @param epoch  The epoch the change entered the gate in.
+     * @param oldest The oldest snapshot epoch still being read.
+     * @param log    Appends the change to the log once it is known to stay in range.
+     * @return The position returned by the log.
+     * @throws ArithmeticException If a balance would go out of range; the account is left unchanged.
+     * @throws IOException         If the log fails; the account is left unchanged.
      */
-    public synchronized void setPres(float pres) {
-        this.pres = pres;
+    public long addUnlocked(long arian, long pres, long epoch, long oldest, AccountStore.Log log)
+            throws IOException {
+        while (true) {
+            //Read before the lock is looked at, so a lock taken after the look replaces it
+            Balance current = balance.get();
+            if (lock.isLocked()) {
+                //Waiting for the holder to finish
+                lock.lock();
+                lock.unlock();
+            } else if (current.appending) {
+                Thread.onSpinWait();
+            } else {
+                Balance next = following(current, arian, pres, epoch, oldest);
+                Balance held = new Balance(current.arian, current.pres, current.epoch, current.previous, true);
+                if (balance.compareAndSet(current, held)) {
+                    long position;
+                    try {
+                        position = log.append();
+                    } catch (IOException | RuntimeException e) {
+                        balance.set(current);
+                        throw e;
+                    }
+                    balance.set(next);
+                    return position;
+                }
+            }
+        }
     }
 
     /**
-     * Get the current state of accounts lock
+     * Reads the balance once no change is being appended to the log for it.
+     */
+    private Balance settled() {
+        Balance current = balance.get();
+        while (current.appending) {
+            Thread.onSpinWait();
+            current = balance.get();
+        }
+        return current;
+    }
+
+    private static Balance following(Balance current, long arian, long pres, long epoch, long oldest) {
+        Balance next;
+        if (current.epoch <= epoch) {
+            next = current.changedIn(arian, pres, epoch);
+        } else {
+            Balance behind = Balance.behind(current.previous, arian, pres, epoch);
+            next = current.changed(arian, pres, current.epoch, behind);
+        }
+        Balance.prune(next, oldest);
+        return next;
+    }
+
+    /**
+     * Works out how much the balance of arian changes when amounts are converted.
      *
-     * @return Returns true is the lock is currently acquired, false otherwise.
+     * @param arian An amount of arian to be converted to pres.
+     * @param pres  An amount of pres to be converted to arian.
+     * @param rate  How many units of pres equal one unit of arian.
+     * @return The amount to add to the balance of arian.
+     * @throws ArithmeticException If the amount is out of range.
      */
-    public boolean isLock() {
-        return lock;
+    public static long convertedArian(long arian, long pres, long rate) {
+        return Math.subtractExact(Fixed.toArian(pres, rate), arian);
     }
 
     /**
-     * Change the lock state of an account
+     * Works out how much the balance of pres changes when amounts are converted.
      *
-     * @param lock A new lock value, either True or False.
+     * @param arian An amount of arian to be converted to pres.
+     * @param pres  An amount of pres to be converted to arian.
+     * @param rate  How many units of pres equal one unit of arian.
+     * @return The amount to add to the balance of pres.
+     * @throws ArithmeticException If the amount is out of range.
+     */
+    public static long convertedPres(long arian, long pres, long rate) {
+        return Math.subtractExact(Fixed.toPres(arian, rate), pres);
+    }
+
+    /**
+     * Acquires the lock of the account, waiting for it if it is held by another thread.
+     */
+    public void lock() {
+        lock.lock();
+    }
+
+    /**
+     * Acquires the lock of the account like {@link #lock()}, and then replaces the balance with an equal one,
+     * so an {@link #addUnlocked} which read the balance before the lock was taken fails its compare-and-set
+     * and waits for the lock instead of changing balances the holder is checking.
+     */
+    public void lockChecked() {
+        lock.lock();
+        Balance current;
+        do {
+            current = settled();
+        } while (!balance.compareAndSet(current, new Balance(current.arian, current.pres, current.epoch,
+                current.previous)));
+    }
+
+    /**
+     * Releases the lock of the account.
      */
-    public void setLock(boolean lock) {
-        this.lock = lock;
+    public void unlock() {
+        lock.unlock();
     }
 
     /**
@@ -97,6 +232,104 @@ public class Account implements Comparable<Account> {
      */
     @Override
     public int compareTo(Account a) {
-        return this.getAccNum().compareTo(a.getAccNum());
+        return Integer.compare(accNum, a.getAccNum());
+    }
+
+    /**
+     * An immutable pair of balances. A new instance is published every time the account changes.
+     * Each one is stamped with the epoch of its last change and links to the balance before it,
+     * for as long as a snapshot may still read that one.
+     */
+    public static final class Balance {
+        static final Balance ZERO = new Balance(0, 0, 0, null);
+
+        final long arian;
+        final long pres;
+        final long epoch;
+        volatile Balance previous;
+        //Whether a change made by addUnlocked is being appended to the log, see Account#addUnlocked
+        final boolean appending;
+
+        Balance(long arian, long pres, long epoch, Balance previous) {
+            this(arian, pres, epoch, previous, false);
+        }
+
+        private Balance(long arian, long pres, long epoch, Balance previous, boolean appending) {
+            this.arian = arian;
+            this.pres = pres;
+            this.epoch = epoch;
+            this.previous = previous;
+            this.appending = appending;
+        }
+
+        /**
+         * Creates the balance following this one, with the amounts added.
+         *
+         * @throws ArithmeticException If a balance would go out of range.
+         */
+        Balance changed(long arian, long pres, long epoch, Balance previous) {
+            return new Balance(Math.addExact(this.arian, arian), Math.addExact(this.pres, pres), epoch, previous);
+        }
+
+        /**
+         * Creates the balance following this one in the given epoch, with the amounts added. It replaces this
+         * balance if both are of the same epoch, as no snapshot can ask for this one any more.
+         *
+         * @throws ArithmeticException If a balance would go out of range.
+         */
+        Balance changedIn(long arian, long pres, long epoch) {
+            return changed(arian, pres, epoch, this.epoch == epoch ? previous : this);
+        }
+
+        /**
+         * Works out the balance kept behind the newest one of an account when a change arrives after a
+         * change of a later epoch.
+         *
+         * @param older The balance kept behind the newest one, null if there is none.
+         * @return The balance to keep behind the newest one instead.
+         * @throws ArithmeticException If a balance would go out of range.
+         */
+        static Balance behind(Balance older, long arian, long pres, long epoch) {
+            /*
+             * A change of the next epoch got here first. This change belongs to the snapshot being taken,
+             * so it goes into the balance that snapshot reads as well as into the newest one.
+             */
+            return (older == null ? ZERO : older).changedIn(arian, pres, epoch);
+        }
+
+        /**
+         * Drops the balances behind the first one every snapshot still being read can use.
+         *
+         * @param newest The newest balance of an account, may be null.
+         * @param oldest The oldest snapshot epoch still being read.
+         */
+        static void prune(Balance newest, long oldest) {
+            for (Balance b = newest; b != null; b = b.previous) {
+                if (b.epoch <= oldest) {
+                    if (b.previous != null) {
+                        b.previous = null;
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Retrieves the balance of arian.
+         *
+         * @return A fixed-point value representing the balance of arian.
+         */
+        public long getArian() {
+            return arian;
+        }
+
+        /**
+         * Retrives the balance of pres.
+         *
+         * @return A fixed-point value representing the balance of pres.
+         */
+        public long getPres() {
+            return pres;
+        }
     }
 }
\ No newline at end of file
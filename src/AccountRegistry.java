@@ -0,0 +1,142 @@
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class holds every account created during the session and indexes them by account number.
+ * The registry is split into segments, each of which is an open-addressing hash table keyed by a
+ * primitive int. Lookups never lock and never box the account number, while opening an account is
+ * an atomic put-if-absent guarded only by the lock of the segment the account falls into.
+ * Accounts are also kept sorted by account number, so listing them in order never needs a sort.
+ */
+public class AccountRegistry {
+    //Number of independently locked segments, must be a power of two
+    private static final int SEGMENT_COUNT = 64;
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+    //Initial number of slots per segment, must be a power of two
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    //The same accounts ordered by account number
+    private final ConcurrentSkipListSet<Account> ordered = new ConcurrentSkipListSet<>();
+
+    /**
+     * Creates an empty registry.
+     */
+    public AccountRegistry() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Searches for the account with the specified account number.
+     *
+     * @param accNum A unique identity number of the account.
+     * @return The account if it is found, null otherwise.
+     */
+    public Account get(int accNum) {
+        int hash = spread(accNum);
+        return segments[hash >>> SEGMENT_SHIFT].get(accNum, hash);
+    }
+
+    /**
+     * Adds the account to the registry unless an account with the same number already exists.
+     *
+     * @param account An account to be added.
+     * @return null if the account was added, the account already present in the registry otherwise.
+     */
+    public Account putIfAbsent(Account account) {
+        int hash = spread(account.getAccNum());
+        Account existing = segments[hash >>> SEGMENT_SHIFT].putIfAbsent(account, hash);
+        if (existing == null) {
+            ordered.add(account);
+        }
+        return existing;
+    }
+
+    /**
+     * Lists the accounts in account number order. The listing does not lock anything; accounts
+     * opened while it is being walked may or may not be included.
+     *
+     * @return The accounts, sorted by account number.
+     */
+    public Iterable<Account> inOrder() {
+        return ordered;
+    }
+
+    /**
+     * Scrambles the bits of an account number so that sequential numbers spread evenly
+     * across segments and slots.
+     *
+     * @param accNum An account number.
+     * @return A well distributed hash of the account number.
+     */
+    static int spread(int accNum) {
+        int h = accNum * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A single open-addressing table with linear probing. Readers go through the volatile table
+     * reference without locking; writers synchronize on the segment and publish a new table when
+     * the current one becomes half full.
+     */
+    private static final class Segment {
+        private volatile AtomicReferenceArray<Account> table = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+        private volatile int count;
+
+        Account get(int accNum, int hash) {
+            AtomicReferenceArray<Account> t = table;
+            int mask = t.length() - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Account a = t.get(i);
+                if (a == null || a.getAccNum() == accNum) {
+                    return a;
+                }
+            }
+        }
+
+        synchronized Account putIfAbsent(Account account, int hash) {
+            int accNum = account.getAccNum();
+            AtomicReferenceArray<Account> t = table;
+            int mask = t.length() - 1;
+            int i = hash & mask;
+            for (Account a = t.get(i); a != null; a = t.get(i)) {
+                if (a.getAccNum() == accNum) {
+                    return a;
+                }
+                i = (i + 1) & mask;
+            }
+            //Growing before the table gets too full keeps probe sequences short
+            if ((count + 1) * 2 > t.length()) {
+                t = resize(t);
+                mask = t.length() - 1;
+                i = hash & mask;
+                while (t.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+            }
+            t.set(i, account);
+            count++;
+            return null;
+        }
+
+        private AtomicReferenceArray<Account> resize(AtomicReferenceArray<Account> old) {
+            AtomicReferenceArray<Account> t = new AtomicReferenceArray<>(old.length() * 2);
+            int mask = t.length() - 1;
+            for (int j = 0; j < old.length(); j++) {
+                Account a = old.get(j);
+                if (a != null) {
+                    int i = spread(a.getAccNum()) & mask;
+                    while (t.get(i) != null) {
+                        i = (i + 1) & mask;
+                    }
+                    t.set(i, a);
+                }
+            }
+            //Readers still holding the old table simply do not see accounts added from now on
+            table = t;
+            return t;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+/**
+ * This interface describes where the balances of the accounts are kept. Accounts are addressed by their
+ * account number, so the commands do not depend on how an account is laid out in memory.
+ * <p>
+ * Balances are fixed-point values, see {@link Fixed}. Every change is stamped with the epoch it entered
+ * the {@link EpochGate} in, and a store keeps older balances for as long as a snapshot may still ask for them.
+ */
+interface AccountStore {
+    /**
+     * Receives the accounts listed by {@link #forEach(long, Visitor)}.
+     */
+    interface Visitor {
+        void account(int accNum, long arian, long pres) throws IOException;
+    }
+
+    /**
+     * Appends a change to the transaction log, see {@link #addUnlocked}.
+     */
+    interface Log {
+        /**
+         * Appends the change.
+         *
+         * @return The position to pass to {@link TransactionLog#await(long)}.
+         */
+        long append() throws IOException;
+    }
+
+    /**
+     * Claims room for one more account, so that the {@link #open(int, long)} following it cannot fail for lack
+     * of room. An opening is logged before it is made, so the room has to be known to be there first. Every
+     * successful claim is used up by exactly one call to open, even one finding the account already exists.
+     *
+     * @return false if the store is full.
+     */
+    default boolean claim() {
+        return true;
+    }
+
+    /**
+     * Opens a new account with both currencies set to 0, using up the room claimed by {@link #claim()}.
+     *
+     * @param accNum The account number.
+     * @param epoch  The epoch the opening entered the gate in.
+     * @return true if the account was opened, false if an account with this number already exists.
+     */
+    boolean open(int accNum, long epoch);
+
+    /**
+     * Adds an account with balances restored from a checkpoint, visible to every snapshot.
+     *
+     * @param accNum The account number.
+     * @param arian  The balance of arian.
+     * @param pres   The balance of pres.
+     * @return true if the account was added, false if an account with this number already exists.
+     * @throws IllegalStateException If the store is full.
+     */
+    boolean restore(int accNum, long arian, long pres);
+
+    /**
+     * Checks whether an account has been opened.
+     *
+     * @param accNum The account number.
+     * @return true if the account exists.
+     */
+    boolean exists(int accNum);
+
+    /**
+     * Acquires the lock of an existing account, waiting for it if it is held by another thread.
+     *
+     * @param accNum The account number.
+     */
+    void lock(int accNum);
+
+    /**
+     * Releases the lock of an account.
+     *
+     * @param accNum The account number.
+     */
+    void unlock(int accNum);
+
+    /**
+     * Acquires the locks of two different existing accounts, waiting for each like {@link #lock(int)}.
+     * Every caller gets them in ascending account number order whichever way round it names them, so
+     * two commands locking the same pair cannot deadlock each other.
+     *
+     * @param a One of the account numbers.
+     * @param b The other account number.
+     */
+    default void lockBoth(int a, int b) {
+        if (a < b) {
+            lock(a);
+            lock(b);
+        } else {
+            lock(b);
+            lock(a);
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockBoth(int, int)}.
+     *
+     * @param a One of the account numbers.
+     * @param b The other account number.
+     */
+    default void unlockBoth(int a, int b) {
+        unlock(a);
+        unlock(b);
+    }
+
+    /**
+     * Acquires the locks of several existing accounts. They are taken in ascending order, the same
+     * order {@link #lockBoth(int, int)} uses, so commands locking overlapping accounts cannot deadlock.
+     *
+     * @param accNums Distinct account numbers in ascending order.
+     */
+    default void lockAll(int[] accNums) {
+        for (int accNum : accNums) {
+            lock(accNum);
+        }
+    }
+
+    /**
+     * Releases the locks taken by {@link #lockAll(int[])}.
+     *
+     * @param accNums The account numbers given to {@link #lockAll(int[])}.
+     */
+    default void unlockAll(int[] accNums) {
+        for (int accNum : accNums) {
+            unlock(accNum);
+        }
+    }
+
+    /**
+     * Checks whether the specified amounts can be added to the balances of an existing account without
+     * going out of range. The answer only holds for as long as nothing else changes the account, e.g.
+     * while its lock is held.
+     *
+     * @param accNum The account number.
+     * @param arian  An amount of arian to add.
+     * @param pres   An amount of pres to add.
+     * @return true if both balances would stay in range.
+     */
+    boolean canAdd(int accNum, long arian, long pres);
+
+    /**
+     * Adds the specified amounts to the balances of an existing account in one atomic step. A Convert
+     * adds the amounts worked out by {@link Account#convertedArian} and {@link Account#convertedPres}.
+     * Safe to call with or without holding the account's lock.
+     *
+     * @param accNum The account number.
+     * @param arian  An amount of arian to add.
+     * @param pres   An amount of pres to add.
+     * @param epoch  The epoch the change entered the gate in.
+     * @param oldest The oldest snapshot epoch still being read.
+     * @throws ArithmeticException If a balance would go out of range; the account is left unchanged.
+     */
+    void add(int accNum, long arian, long pres, long epoch, long oldest);
+
+    /**
+     * Adds the specified amounts like {@link #add}, without taking the lock of the account but never while
+     * another thread holds it, since the holder may have checked the balances with {@link #canAdd}. Used by
+     * Convert with -Dserver.lockFree=true. The change is appended to the log once it is known to stay in
+     * range and before it is made, with no other change to the account in between, so the log holds the
+     * changes of every account in the order they were made.
+     *
+     * @param accNum The account number.
+     * @param arian  An amount of arian to add.
+     * @param pres   An amount of pres to add.
+     * @param epoch  The epoch the change entered the gate in.
+     * @param oldest The oldest snapshot epoch still being read.
+     * @param log    Appends the change to the log.
+     * @return The position returned by the log.
+     * @throws ArithmeticException If a balance would go out of range; the account is left unchanged.
+     * @throws IOException         If the log fails; the account is left unchanged.
+     */
+    long addUnlocked(int accNum, long arian, long pres, long epoch, long oldest, Log log) throws IOException;
+
+    /**
+     * Drops the older balances no snapshot needs any more. Called whenever a snapshot has been released.
+     *
+     * @param oldestSnapshot Gives the oldest snapshot epoch still being read, see
+     *                       {@link EpochGate#oldestSnapshot()}.
+     */
+    default void released(LongSupplier oldestSnapshot) {
+    }
+
+    /**
+     * Lists every account opened in a snapshot with its balances in that snapshot, in account number order.
+     *
+     * @param snapshot The epoch of a snapshot which is held until this returns.
+     * @param visitor  Receives the accounts.
+     */
+    void forEach(long snapshot, Visitor visitor) throws IOException;
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class decides how much work the server takes on, so overload turns into quick "server busy"
+ * responses instead of clients queueing for minutes. It limits the number of connections open at once,
+ * how long a connection may stay silent, and how many commands a single connection may send per second.
+ * Every limit is set with a system property and none applies when it is 0.
+ * <p>
+ * The threads engine also bounds the connections waiting for a thread of its pool, see
+ * {@link #ACCEPT_QUEUE}; connections beyond it are refused the same way.
+ */
+final class Admission {
+    //The most connections open at once
+    private static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 10000);
+    //The most connections the threads engine keeps waiting for a thread of its pool
+    static final int ACCEPT_QUEUE = Integer.getInteger("server.acceptQueue", 1000);
+    //How long a connection may send nothing before it is closed
+    static final int IDLE_MILLIS = (int) TimeUnit.SECONDS.toMillis(Integer.getInteger("server.idleSeconds", 0));
+    //The most commands a connection may send per second, on average over a second
+    private static final int COMMANDS_PER_SECOND = Integer.getInteger("server.commandsPerSecond", 0);
+
+    private static final AtomicInteger connections = new AtomicInteger();
+
+    private Admission() {
+    }
+
+    /**
+     * Counts a connection which was just accepted, unless the server already has as many as it takes.
+     *
+     * @return true if the connection may be served, false if it must be refused.
+     */
+    static boolean connect() {
+        if (MAX_CONNECTIONS <= 0) {
+            connections.incrementAndGet();
+            return true;
+        }
+        int n;
+        do {
+            n = connections.get();
+            if (n >= MAX_CONNECTIONS) {
+                return false;
+            }
+        } while (!connections.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Counts a connection admitted by {@link #connect()} which has been closed.
+     */
+    static void disconnect() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * Tells a client the server is too busy to serve its connection, then closes it. The response is sent
+     * as a frame if the client has already asked for the binary protocol, as text otherwise. Must be
+     * called while the socket is still blocking, and never waits for the client.
+     *
+     * @param socket A connection which was just accepted.
+     */
+    static void refuse(Socket socket) {
+        Server.metrics.refused();
+        EventLog.log(EventLog.Level.CONNECTION, "Refused: ", socket);
+        try (socket) {
+            InputStream in = socket.getInputStream();
+            boolean binary = in.available() > 0 && in.read() == CommandParser.GREETING;
+            Response out = binary ? new BinaryResponse(socket.getOutputStream())
+                    : new TextResponse(new PrintWriter(socket.getOutputStream()));
+            out.send(Reply.BUSY);
+            out.flush();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Creates the limiter of a new connection.
+     *
+     * @return A limiter admitting the number of commands per second set with -Dserver.commandsPerSecond.
+     */
+    static Limiter newLimiter() {
+        return new Limiter(COMMANDS_PER_SECOND);
+    }
+
+    /**
+     * Limits the commands of one connection. Commands are spaced evenly over a second, but a connection
+     * which has been quiet may send a second's worth of them at once. Used by one thread at a time.
+     */
+    static final class Limiter {
+        private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        //The time between two commands, or 0 if there is no limit
+        private final long interval;
+        //When the connection will have used up everything it was allowed so far
+        private long busyUntil = System.nanoTime();
+
+        private Limiter(int perSecond) {
+            interval = perSecond > 0 ? SECOND / perSecond : 0;
+        }
+
+        /**
+         * Checks whether the connection may send another command now, and counts it if so.
+         *
+         * @return false if the connection has sent too many commands.
+         */
+        boolean admit() {
+            if (interval == 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            long from = busyUntil - now > 0 ? busyUntil : now;
+            if (from + interval - now > SECOND) {
+                return false;
+            }
+            busyUntil = from + interval;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * This class holds the legs of a Batch command: Transfers and Converts which are applied together or not
+ * at all. Legs are kept in parallel arrays in the order they were sent, and the accounts they touch are
+ * collected so that they can all be locked at once in ascending order.
+ */
+class Batch {
+    private int size;
+    //A Convert leg has no receiver and is marked here
+    private boolean[] converts = new boolean[16];
+    private int[] senders = new int[16];
+    private int[] receivers = new int[16];
+    private long[] arians = new long[16];
+    private long[] preses = new long[16];
+
+    /**
+     * Adds a Transfer.
+     *
+     * @param accFrom The sender.
+     * @param accTo   The receiver.
+     * @param arian   The amount of arian moved.
+     * @param pres    The amount of pres moved.
+     */
+    void transfer(int accFrom, int accTo, long arian, long pres) {
+        add(false, accFrom, accTo, arian, pres);
+    }
+
+    /**
+     * Adds a Convert.
+     *
+     * @param accNum The account number.
+     * @param arian  The amount of arian to be converted to pres.
+     * @param pres   The amount of pres to be converted to arian.
+     */
+    void convert(int accNum, long arian, long pres) {
+        add(true, accNum, accNum, arian, pres);
+    }
+
+    private void add(boolean convert, int accFrom, int accTo, long arian, long pres) {
+        if (size == senders.length) {
+            int n = size * 2;
+            converts = Arrays.copyOf(converts, n);
+            senders = Arrays.copyOf(senders, n);
+            receivers = Arrays.copyOf(receivers, n);
+            arians = Arrays.copyOf(arians, n);
+            preses = Arrays.copyOf(preses, n);
+        }
+        converts[size] = convert;
+        senders[size] = accFrom;
+        receivers[size] = accTo;
+        arians[size] = arian;
+        preses[size] = pres;
+        size++;
+    }
+
+    /**
+     * Retrieves the number of legs.
+     *
+     * @return The number of legs added so far.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Tells whether a leg is a Convert.
+     *
+     * @param leg The index of the leg, from 0.
+     * @return true for a Convert, false for a Transfer.
+     */
+    boolean isConvert(int leg) {
+        return converts[leg];
+    }
+
+    /**
+     * Retrieves the sender of a Transfer, or the account of a Convert.
+     *
+     * @param leg The index of the leg, from 0.
+     * @return The account number.
+     */
+    int getFirstAccount(int leg) {
+        return senders[leg];
+    }
+
+    /**
+     * Retrieves the receiver of a Transfer.
+     *
+     * @param leg The index of the leg, from 0.
+     * @return The account number.
+     */
+    int getSecondAccount(int leg) {
+        return receivers[leg];
+    }
+
+    /**
+     * Retrieves the amount of arian of a leg.
+     *
+     * @param leg The index of the leg, from 0.
+     * @return The fixed-point amount of arian.
+     */
+    long getArian(int leg) {
+        return arians[leg];
+    }
+
+    /**
+     * Retrieves the amount of pres of a leg.
+     *
+     * @param leg The index of the leg, from 0.
+     * @return The fixed-point amount of pres.
+     */
+    long getPres(int leg) {
+        return preses[leg];
+    }
+
+    /**
+     * Lists every account the legs touch, each once.
+     *
+     * @return The account numbers in ascending order.
+     */
+    int[] accounts() {
+        int[] all = new int[size * 2];
+        System.arraycopy(senders, 0, all, 0, size);
+        System.arraycopy(receivers, 0, all, size, size);
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (n == 0 || all[i] != all[n - 1]) {
+                all[n++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, n);
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class writes responses as frames of the binary protocol. A frame starts with its length, an int
+ * counting the bytes after it, followed by the status code of the {@link Reply} and its values, all
+ * big-endian:
+ * <ul>
+ * <li>OPENED, DUPLICATE_ACCOUNT and BATCH_APPLIED: int account number or number of legs</li>
+ * <li>BATCH_REFUSED: int leg number, byte status code of the refusal</li>
+ * <li>CONVERTED: long rate, long version of the rate</li>
+ * <li>ACCOUNT: int account number, long arian, long pres, one frame per account of State</li>
+ * <li>STATE: long rate, ending State</li>
+ * <li>STATS: the report in UTF-8</li>
+ * <li>any other response: nothing</li>
+ * </ul>
+ * Rates and balances are fixed-point values counting millionths, see {@link Fixed}.
+ * Frames are built in a reused buffer, so a response other than Stats does not allocate.
+ */
+class BinaryResponse implements Response {
+    private final OutputStream out;
+    //Room for the largest frame except Stats
+    private final ByteBuffer frame = ByteBuffer.allocate(32);
+
+    /**
+     * Creates the response of a connection using the binary protocol.
+     *
+     * @param out Where the frames are written, buffered by the caller.
+     */
+    BinaryResponse(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void send(Reply reply) throws IOException {
+        begin(reply);
+        end();
+    }
+
+    @Override
+    public void send(Reply reply, int value) throws IOException {
+        begin(reply).putInt(value);
+        end();
+    }
+
+    @Override
+    public void refuseLeg(int leg, Reply refusal) throws IOException {
+        begin(Reply.BATCH_REFUSED).putInt(leg).put(refusal.getCode());
+        end();
+    }
+
+    @Override
+    public void converted(long rate, long version) throws IOException {
+        begin(Reply.CONVERTED).putLong(rate).putLong(version);
+        end();
+    }
+
+    @Override
+    public void account(int accNum, long arian, long pres) throws IOException {
+        begin(Reply.ACCOUNT).putInt(accNum).putLong(arian).putLong(pres);
+        end();
+    }
+
+    @Override
+    public void state(long rate) throws IOException {
+        begin(Reply.STATE).putLong(rate);
+        end();
+    }
+
+    @Override
+    public void stats(Metrics metrics) throws IOException {
+        byte[] report = metrics.getReport().getBytes(StandardCharsets.UTF_8);
+        begin(Reply.STATS);
+        frame.putInt(0, 1 + report.length);
+        out.write(frame.array(), 0, frame.position());
+        out.write(report);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    private ByteBuffer begin(Reply reply) {
+        frame.clear();
+        //The length is filled in once the frame is complete
+        frame.putInt(0).put(reply.getCode());
+        return frame;
+    }
+
+    private void end() throws IOException {
+        frame.putInt(0, frame.position() - Integer.BYTES);
+        out.write(frame.array(), 0, frame.position());
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class saves every account and the rate to a compact binary file, so that a restart only has to
+ * replay the changes logged after it instead of the whole transaction log. The file is a fixed header
+ * followed by one fixed-width record per account:
+ * <pre>
+ * header:  magic (int), epoch (long), log position (long), rate (long), rate version (long),
+ *          account count (int)
+ * account: account number (int), arian (long), pres (long)
+ * </pre>
+ * The rate and the balances are fixed-point values, see {@link Fixed}.
+ * A checkpoint is written to a temporary file first and moved over the previous one once complete,
+ * so a crash while writing never leaves a broken checkpoint behind.
+ * <p>
+ * A checkpoint can also be sent over a connection, e.g. to a standby server. It then has no account count;
+ * accounts follow in runs, each preceded by its number of accounts, and a run of 0 accounts ends them.
+ */
+class Checkpoint {
+    private static final int MAGIC = 0x41504333;
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 20;
+    //Accounts are written in chunks of this many bytes
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long epoch;
+    private final long logPosition;
+    private final long rate;
+    private final long rateVersion;
+
+    private Checkpoint(long epoch, long logPosition, long rate, long rateVersion) {
+        this.epoch = epoch;
+        this.logPosition = logPosition;
+        this.rate = rate;
+        this.rateVersion = rateVersion;
+    }
+
+    /**
+     * Retrieves the epoch of the snapshot the checkpoint was written from.
+     *
+     * @return Changes stamped with this epoch or an earlier one are held by the checkpoint.
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Retrieves the position in the transaction log before which every change is held by the checkpoint.
+     *
+     * @return A position in the log file.
+     */
+    long getLogPosition() {
+        return logPosition;
+    }
+
+    /**
+     * Retrieves the rate at the time of the checkpoint, with its version.
+     *
+     * @return The rate, to carry on from.
+     */
+    Rate getRate() {
+        return new Rate(rate, rateVersion);
+    }
+
+    /**
+     * Writes the balances of the given accounts as they were in a snapshot.
+     *
+     * @param file        The checkpoint file, replaced once the new one is complete.
+     * @param epoch       The epoch of a snapshot which is held until this returns.
+     * @param logPosition The position in the transaction log before which every change is in the snapshot.
+     * @param rate        The rate in the snapshot.
+     * @param accounts    The store holding the accounts.
+     */
+    static void write(Path file, long epoch, long logPosition, Rate rate, AccountStore accounts)
+            throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+            //The account count is filled in once every account has been written
+            chunk.putInt(MAGIC).putLong(epoch).putLong(logPosition).putLong(rate.getValue())
+                    .putLong(rate.getVersion()).putInt(0);
+            int[] count = new int[1];
+            accounts.forEach(epoch, (accNum, arian, pres) -> {
+                if (chunk.remaining() < RECORD_SIZE) {
+                    write(channel, chunk);
+                }
+                chunk.putInt(accNum).putLong(arian).putLong(pres);
+                count[0]++;
+            });
+            write(channel, chunk);
+            chunk.putInt(count[0]).flip();
+            channel.write(chunk, HEADER_SIZE - 4);
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Sends the balances of the given accounts as they were in a snapshot.
+     *
+     * @param out         Where to send the checkpoint.
+     * @param epoch       The epoch of a snapshot which is held until this returns.
+     * @param logPosition The position in the transaction log before which every change is in the snapshot.
+     * @param rate        The rate in the snapshot.
+     * @param accounts    The store holding the accounts.
+     */
+    static void send(DataOutputStream out, long epoch, long logPosition, Rate rate, AccountStore accounts)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(epoch);
+        out.writeLong(logPosition);
+        out.writeLong(rate.getValue());
+        out.writeLong(rate.getVersion());
+        ByteBuffer run = ByteBuffer.allocate(CHUNK_SIZE);
+        accounts.forEach(epoch, (accNum, arian, pres) -> {
+            if (run.remaining() < RECORD_SIZE) {
+                send(out, run);
+            }
+            run.putInt(accNum).putLong(arian).putLong(pres);
+        });
+        send(out, run);
+        out.writeInt(0);
+    }
+
+    private static void send(DataOutputStream out, ByteBuffer run) throws IOException {
+        if (run.position() > 0) {
+            out.writeInt(run.position() / RECORD_SIZE);
+            out.write(run.array(), 0, run.position());
+            run.clear();
+        }
+    }
+
+    /**
+     * Restores the accounts of a checkpoint sent by {@link #send}.
+     *
+     * @param in       The connection the checkpoint is sent over.
+     * @param accounts The store receiving the accounts.
+     * @return The checkpoint.
+     */
+    static Checkpoint receive(DataInputStream in, AccountStore accounts) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint");
+        }
+        Checkpoint checkpoint = new Checkpoint(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        long count = 0;
+        for (int n = in.readInt(); n > 0; n = in.readInt()) {
+            for (int i = 0; i < n; i++) {
+                accounts.restore(in.readInt(), in.readLong(), in.readLong());
+            }
+            count += n;
+        }
+        EventLog.log(EventLog.Level.INFO, "Received " + count + " accounts from the primary");
+        return checkpoint;
+    }
+
+    /**
+     * Restores the accounts saved in a checkpoint. The file is mapped into memory and read in place.
+     *
+     * @param file     The checkpoint file.
+     * @param accounts The store receiving the accounts.
+     * @return The checkpoint, or null if there is no checkpoint file yet.
+     */
+    static Checkpoint load(Path file, AccountStore accounts) throws IOException {
+        MappedByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (in.limit() < HEADER_SIZE || in.getInt() != MAGIC) {
+            throw new IOException("Not a checkpoint: " + file);
+        }
+        Checkpoint checkpoint = new Checkpoint(in.getLong(), in.getLong(), in.getLong(), in.getLong());
+        int count = in.getInt();
+        if (in.remaining() != (long) count * RECORD_SIZE) {
+            throw new IOException("Incomplete checkpoint: " + file);
+        }
+        for (int i = 0; i < count; i++) {
+            accounts.restore(in.getInt(), in.getLong(), in.getLong());
+        }
+        EventLog.log(EventLog.Level.INFO, "Restored " + count + " accounts from the checkpoint");
+        return checkpoint;
+    }
+}
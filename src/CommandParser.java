@@ -0,0 +1,646 @@
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Scanner;
+
+/**
+ * This class reads commands sent by a client. It works directly on the characters of a line instead of
+ * regular expressions and Scanners, and keeps the parsed arguments in its own fields, so parsing a
+ * well-formed command does not allocate anything. A parser is reused for every line of a connection
+ * and must not be shared between threads.
+ * <p>
+ * Arguments are split on whitespace and numbers are accepted exactly as a Scanner would accept them.
+ * Amounts and rates are read as decimal numbers straight into fixed-point values, see {@link Fixed}.
+ * The rare numbers written in a form the parser does not recognise itself, such as "1,000", are handed
+ * to a Scanner so that the result stays the same.
+ * <p>
+ * Clients may use the binary protocol instead, by sending {@link #GREETING} as the first byte of the
+ * connection. Every command then comes in a frame of its own: an opcode followed by its arguments as
+ * big-endian ints and fixed-point longs, see {@link #decode(ByteBuffer)}. Both protocols fill in the same fields,
+ * so the commands run the same way whichever one the client uses.
+ */
+public class CommandParser {
+    //The first byte sent by a client using the binary protocol; no line of text starts with it
+    public static final byte GREETING = 0;
+
+    /**
+     * The commands understood by the server, with their opcodes in the binary protocol and the number
+     * of bytes their arguments take there.
+     */
+    public enum Command {
+        RATE(1, 8), OPEN(2, 4), STATE(3, 0), TRANSFER(4, 24), CONVERT(5, 20), CLOSE(6, 0), STATS(7, 0),
+        //A batch takes its legs, each an opcode of Transfer or Convert followed by its arguments
+        BATCH(8, -1),
+        PROMOTE(9, 0), UNSUPPORTED(0, -1);
+
+        private final byte opcode;
+        private final int size;
+
+        Command(int opcode, int size) {
+            this.opcode = (byte) opcode;
+            this.size = size;
+        }
+
+        /**
+         * Retrieves the opcode of the binary protocol.
+         *
+         * @return The opcode.
+         */
+        public byte getOpcode() {
+            return opcode;
+        }
+    }
+
+    //The commands by opcode
+    private static final Command[] OPCODES = new Command[16];
+
+    static {
+        for (Command c : Command.values()) {
+            OPCODES[c.opcode] = c;
+        }
+    }
+
+    /**
+     * The outcome of reading the amounts of a Transfer or Convert, or the value of a Rate.
+     */
+    public enum Amount {
+        //The amounts were read successfully
+        OK,
+        //Nothing was provided
+        MISSING,
+        //The amounts are not written as "(number,number)"
+        WRONG_FORMAT,
+        //The amounts or the value are not decimal numbers
+        NOT_A_NUMBER,
+        //The amounts or the value are too large for a fixed-point value
+        OUT_OF_RANGE
+    }
+
+    //Every power of ten which a long holds
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+            10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L,
+            1000000000000000L, 10000000000000000L, 100000000000000000L, 1000000000000000000L};
+
+    private CharSequence line;
+    private int pos;
+    //Bounds of the token found by the last call of nextToken()
+    private int tokenStart;
+    private int tokenEnd;
+    //Results of the last call of parseInt() and parseFixed()
+    private int intValue;
+    private long fixedValue;
+
+    private Command command;
+    private boolean hasFirstAccount;
+    private int firstAccount;
+    private boolean hasSecondAccount;
+    private int secondAccount;
+    private Amount amount;
+    private long arian;
+    private long pres;
+    private long rate;
+    //The legs of a Batch not handed out yet, as text or as binary
+    private CharSequence legs;
+    private int legPos;
+    private ByteBuffer binaryLegs;
+
+    /**
+     * Reads a line sent by the client. The results can be retrieved with the getters until the
+     * next line is parsed.
+     *
+     * @param line A line without its line terminator.
+     * @return The command found on the line.
+     */
+    public Command parse(CharSequence line) {
+        this.line = line;
+        pos = 0;
+        reset();
+        command = dispatch();
+        //Skipping the command itself
+        nextToken();
+        switch (command) {
+            case RATE:
+                if (nextToken()) {
+                    amount = parseFixed(tokenStart, tokenEnd, false);
+                    rate = fixedValue;
+                }
+                break;
+            case OPEN:
+                readFirstAccount();
+                break;
+            case TRANSFER:
+                if (readFirstAccount() && nextToken() && parseInt(tokenStart, tokenEnd)) {
+                    hasSecondAccount = true;
+                    secondAccount = intValue;
+                    readAmounts();
+                }
+                break;
+            case CONVERT:
+                if (readFirstAccount()) {
+                    readAmounts();
+                }
+                break;
+            case BATCH:
+                legs = line.subSequence(pos, line.length());
+                legPos = 0;
+                break;
+            default:
+                break;
+        }
+        return command;
+    }
+
+    /**
+     * Reads a frame sent by a client using the binary protocol. The results can be retrieved with the
+     * getters until the next line or frame is parsed. A frame holding an unknown opcode, or arguments
+     * of the wrong size, is an unsupported command.
+     *
+     * @param frame The frame without its length, from its position to its limit. Batch legs are read
+     *              from it later, so it must not change until they have been.
+     * @return The command found in the frame.
+     */
+    public Command decode(ByteBuffer frame) {
+        command = read(frame);
+        if (frame.hasRemaining() && command != Command.BATCH) {
+            command = Command.UNSUPPORTED;
+        }
+        return command;
+    }
+
+    private Command read(ByteBuffer frame) {
+        reset();
+        Command c = frame.hasRemaining() ? byOpcode(frame.get()) : Command.UNSUPPORTED;
+        if (c == Command.BATCH) {
+            //Every leg is checked now, so a malformed one makes the whole frame unsupported
+            for (int i = frame.position(); i < frame.limit(); ) {
+                int size = byOpcode(frame.get(i)).size;
+                if (size < 0 || i + 1 + size > frame.limit()) {
+                    return Command.UNSUPPORTED;
+                }
+                i += 1 + size;
+            }
+            binaryLegs = frame;
+            return c;
+        }
+        if (c.size < 0 || frame.remaining() < c.size) {
+            return Command.UNSUPPORTED;
+        }
+        switch (c) {
+            case RATE:
+                rate = frame.getLong();
+                amount = inRange(rate, 0);
+                break;
+            case OPEN:
+                hasFirstAccount = true;
+                firstAccount = frame.getInt();
+                break;
+            case TRANSFER:
+                hasFirstAccount = true;
+                firstAccount = frame.getInt();
+                hasSecondAccount = true;
+                secondAccount = frame.getInt();
+                arian = frame.getLong();
+                pres = frame.getLong();
+                amount = inRange(arian, pres);
+                break;
+            case CONVERT:
+                hasFirstAccount = true;
+                firstAccount = frame.getInt();
+                arian = frame.getLong();
+                pres = frame.getLong();
+                amount = inRange(arian, pres);
+                break;
+            default:
+                break;
+        }
+        return c;
+    }
+
+    /**
+     * Checks fixed-point values sent in a frame. The most negative long is the one value whose amount
+     * cannot be taken back the other way, as negating it gives it back unchanged, so it is refused here
+     * just as when it is sent as text.
+     */
+    private static Amount inRange(long a, long b) {
+        return a == Long.MIN_VALUE || b == Long.MIN_VALUE ? Amount.OUT_OF_RANGE : Amount.OK;
+    }
+
+    private static Command byOpcode(byte opcode) {
+        Command c = opcode >= 0 && opcode < OPCODES.length ? OPCODES[opcode] : null;
+        return c == null ? Command.UNSUPPORTED : c;
+    }
+
+    private void reset() {
+        hasFirstAccount = false;
+        hasSecondAccount = false;
+        amount = Amount.MISSING;
+        legs = null;
+        binaryLegs = null;
+    }
+
+    /**
+     * Retrieves the command found by the last parse.
+     *
+     * @return The command.
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Tells whether the first argument of Open, Transfer or Convert is an integer.
+     *
+     * @return true if the first account number was read successfully.
+     */
+    public boolean hasFirstAccount() {
+        return hasFirstAccount;
+    }
+
+    /**
+     * Retrieves the account number given to Open and Convert, or the sender of a Transfer.
+     *
+     * @return The first account number.
+     */
+    public int getFirstAccount() {
+        return firstAccount;
+    }
+
+    /**
+     * Tells whether the second argument of Transfer is an integer.
+     *
+     * @return true if the second account number was read successfully.
+     */
+    public boolean hasSecondAccount() {
+        return hasSecondAccount;
+    }
+
+    /**
+     * Retrieves the receiver of a Transfer.
+     *
+     * @return The second account number.
+     */
+    public int getSecondAccount() {
+        return secondAccount;
+    }
+
+    /**
+     * Tells how reading the amounts of a Transfer or Convert, or the value of a Rate, went.
+     *
+     * @return The outcome of reading the amounts.
+     */
+    public Amount getAmount() {
+        return amount;
+    }
+
+    /**
+     * Retrieves the amount of arian given to Transfer or Convert.
+     *
+     * @return The amount of arian, as a fixed-point value.
+     */
+    public long getArian() {
+        return arian;
+    }
+
+    /**
+     * Retrieves the amount of pres given to Transfer or Convert.
+     *
+     * @return The amount of pres, as a fixed-point value.
+     */
+    public long getPres() {
+        return pres;
+    }
+
+    /**
+     * Retrieves the value given to Rate.
+     *
+     * @return The new rate, as a fixed-point value.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Parses the next leg of a Batch. In the text protocol legs are commands separated by ';', and
+     * empty legs, e.g. after a trailing ';', are skipped.
+     *
+     * @param leg A parser receiving the leg, other than this one.
+     * @return The command found in the leg, or null if every leg has been parsed.
+     */
+    public Command nextLeg(CommandParser leg) {
+        if (binaryLegs != null) {
+            return binaryLegs.hasRemaining() ? leg.command = leg.read(binaryLegs) : null;
+        }
+        while (legs != null && legPos <= legs.length()) {
+            int to = legPos;
+            while (to < legs.length() && legs.charAt(to) != ';') {
+                to++;
+            }
+            int start = legPos;
+            int end = to;
+            while (start < end && Character.isWhitespace(legs.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(legs.charAt(end - 1))) {
+                end--;
+            }
+            legPos = to + 1;
+            if (start < end) {
+                return leg.parse(legs.subSequence(start, end));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds out which command the line holds. Commands taking arguments must be followed by a single
+     * space, while State, Close, Stats and Promote must stand alone. Letters may be in any case.
+     *
+     * @return The command found on the line.
+     */
+    private Command dispatch() {
+        if (isAlone("state")) {
+            return Command.STATE;
+        } else if (isAlone("close")) {
+            return Command.CLOSE;
+        } else if (isAlone("stats")) {
+            return Command.STATS;
+        } else if (isAlone("promote")) {
+            return Command.PROMOTE;
+        } else if (hasArguments("rate")) {
+            return Command.RATE;
+        } else if (hasArguments("open")) {
+            return Command.OPEN;
+        } else if (hasArguments("transfer")) {
+            return Command.TRANSFER;
+        } else if (hasArguments("convert")) {
+            return Command.CONVERT;
+        } else if (hasArguments("batch")) {
+            return Command.BATCH;
+        }
+        return Command.UNSUPPORTED;
+    }
+
+    private boolean isAlone(String keyword) {
+        return line.length() == keyword.length() && startsWith(keyword);
+    }
+
+    private boolean hasArguments(String keyword) {
+        int n = keyword.length();
+        if (line.length() <= n || line.charAt(n) != ' ' || !startsWith(keyword)) {
+            return false;
+        }
+        //Arguments cannot span several lines
+        for (int i = n + 1; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean startsWith(String keyword) {
+        for (int i = 0; i < keyword.length(); i++) {
+            //Setting the 0x20 bit turns an upper case ASCII letter into lower case
+            if ((line.charAt(i) | 0x20) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next whitespace separated token of the line.
+     *
+     * @return false if there are no more tokens.
+     */
+    private boolean nextToken() {
+        int n = line.length();
+        while (pos < n && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        if (pos == n) {
+            return false;
+        }
+        tokenStart = pos;
+        while (pos < n && !Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        tokenEnd = pos;
+        return true;
+    }
+
+    private boolean readFirstAccount() {
+        if (nextToken() && parseInt(tokenStart, tokenEnd)) {
+            hasFirstAccount = true;
+            firstAccount = intValue;
+        }
+        return hasFirstAccount;
+    }
+
+    /**
+     * Reads amounts written as "(a,p)". Like the original format, brackets anywhere in the token are
+     * ignored, commas separate the numbers, empty parts are skipped and anything after the second
+     * number is ignored.
+     */
+    private void readAmounts() {
+        if (!nextToken()) {
+            amount = Amount.MISSING;
+            return;
+        }
+        int start = tokenStart;
+        int end = tokenEnd;
+        if (end - start < 3 || line.charAt(start) != '(' || line.charAt(end - 1) != ')') {
+            amount = Amount.WRONG_FORMAT;
+            return;
+        }
+        amount = Amount.NOT_A_NUMBER;
+        int found = 0;
+        int partStart = start;
+        for (int i = start; i <= end && found < 2; i++) {
+            if (i == end || line.charAt(i) == ',') {
+                if (!isOnlyBrackets(partStart, i)) {
+                    Amount part = parseFixed(partStart, i, true);
+                    if (part != Amount.OK) {
+                        amount = part;
+                        return;
+                    }
+                    if (found++ == 0) {
+                        arian = fixedValue;
+                    } else {
+                        pres = fixedValue;
+                    }
+                }
+                partStart = i + 1;
+            }
+        }
+        if (found == 2) {
+            amount = Amount.OK;
+        }
+    }
+
+    private boolean isOnlyBrackets(int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c != '(' && c != ')') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads an integer the way Scanner.nextInt() would, leaving it in intValue.
+     *
+     * @return true if the characters form an integer.
+     */
+    private boolean parseInt(int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (line.charAt(i) == '-' || line.charAt(i) == '+') {
+            negative = line.charAt(i) == '-';
+            i++;
+        }
+        if (i == to) {
+            return false;
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                //Digit grouping and non-ASCII digits
+                return parseIntWithScanner(from, to);
+            }
+            value = value * 10 + (c - '0');
+            if (value > 1L << 31) {
+                return false;
+            }
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            return false;
+        }
+        intValue = (int) value;
+        return true;
+    }
+
+    private boolean parseIntWithScanner(int from, int to) {
+        Scanner scanner = new Scanner(line.subSequence(from, to).toString());
+        boolean valid = scanner.hasNextInt();
+        if (valid) {
+            intValue = scanner.nextInt();
+        }
+        return valid;
+    }
+
+    /**
+     * Reads a decimal number the way Scanner.nextBigDecimal() would, leaving it in fixedValue as a
+     * fixed-point value rounded to the nearest millionth. Plain decimal numbers are converted here
+     * with long arithmetic; any other form is left to a Scanner.
+     *
+     * @param skipBrackets Whether brackets should be ignored as if they were not there.
+     * @return OK, NOT_A_NUMBER if the characters do not form a decimal number, or OUT_OF_RANGE.
+     */
+    private Amount parseFixed(int from, int to, boolean skipBrackets) {
+        boolean negative = false;
+        boolean negativeExponent = false;
+        boolean digitSeen = false;
+        boolean exponentSeen = false;
+        //0: sign, 1: integer part, 2: fraction, 3: exponent sign, 4: exponent
+        int state = 0;
+        long mantissa = 0;
+        int fractionDigits = 0;
+        int exponent = 0;
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (skipBrackets && (c == '(' || c == ')')) {
+                continue;
+            }
+            if (c >= '0' && c <= '9') {
+                if (state >= 3) {
+                    state = 4;
+                    exponentSeen = true;
+                    exponent = exponent * 10 + (c - '0');
+                    if (exponent > 999) {
+                        return parseFixedWithScanner(from, to, skipBrackets);
+                    }
+                    continue;
+                }
+                state = Math.max(state, 1);
+                digitSeen = true;
+                if (mantissa == 0 && c == '0') {
+                    //Leading zeros only move the decimal point
+                    fractionDigits += state == 2 ? 1 : 0;
+                } else if (mantissa < POWERS_OF_TEN[17]) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    fractionDigits += state == 2 ? 1 : 0;
+                } else {
+                    return parseFixedWithScanner(from, to, skipBrackets);
+                }
+            } else if ((c == '-' || c == '+') && (state == 0 || state == 3)) {
+                if (state == 0) {
+                    negative = c == '-';
+                    state = 1;
+                } else {
+                    negativeExponent = c == '-';
+                    state = 4;
+                }
+            } else if (c == '.' && state <= 1) {
+                state = 2;
+            } else if ((c == 'e' || c == 'E') && digitSeen && (state == 1 || state == 2)) {
+                state = 3;
+            } else {
+                return parseFixedWithScanner(from, to, skipBrackets);
+            }
+        }
+        if (!digitSeen || (state >= 3 && !exponentSeen)) {
+            return parseFixedWithScanner(from, to, skipBrackets);
+        }
+        //The number is mantissa * 10^power millionths
+        int power = (negativeExponent ? -exponent : exponent) - fractionDigits + Fixed.DIGITS;
+        long value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (power >= POWERS_OF_TEN.length) {
+            return Amount.OUT_OF_RANGE;
+        } else if (power >= 0) {
+            long high = Math.multiplyHigh(mantissa, POWERS_OF_TEN[power]);
+            value = mantissa * POWERS_OF_TEN[power];
+            if (high != 0 || value < 0) {
+                return Amount.OUT_OF_RANGE;
+            }
+        } else if (power >= -POWERS_OF_TEN.length + 1) {
+            value = Fixed.divide(mantissa, POWERS_OF_TEN[-power]);
+        } else {
+            //The mantissa has at most 18 digits, so the number is below half a millionth
+            value = 0;
+        }
+        fixedValue = negative ? -value : value;
+        return Amount.OK;
+    }
+
+    private Amount parseFixedWithScanner(int from, int to, boolean skipBrackets) {
+        StringBuilder token = new StringBuilder(to - from);
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (!skipBrackets || (c != '(' && c != ')')) {
+                token.append(c);
+            }
+        }
+        Scanner scanner = new Scanner(token.toString());
+        if (!scanner.hasNextBigDecimal()) {
+            return Amount.NOT_A_NUMBER;
+        }
+        BigDecimal value = scanner.nextBigDecimal();
+        try {
+            fixedValue = Fixed.of(value);
+        } catch (ArithmeticException e) {
+            return Amount.OUT_OF_RANGE;
+        }
+        //Only reached through here, as a plain number keeps its magnitude below it; see inRange()
+        if (fixedValue == Long.MIN_VALUE) {
+            return Amount.OUT_OF_RANGE;
+        }
+        return Amount.OK;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class lets readers take a consistent point-in-time view of the accounts without stopping the
+ * commands changing them. Every change runs inside the gate and is stamped with the epoch it entered in.
+ * Taking a snapshot moves the gate to a new epoch and waits only for the changes still running in the
+ * old one; from then on the snapshot sees exactly the changes stamped with the old epoch or earlier,
+ * while new changes carry on in the new epoch. Accounts keep older balances around for as long as a
+ * snapshot might still need them.
+ * <p>
+ * Changes are counted in striped counters, one set per epoch parity, so entering the gate does not
+ * make all threads contend on a single variable.
+ */
+class EpochGate {
+    //Number of counters per epoch parity, must be a power of two
+    private static final int STRIPES = 32;
+    //Counters are spread this many longs apart so that each one sits on its own cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray running = new AtomicLongArray(2 * STRIPES * PADDING);
+    private volatile long epoch = 1;
+    //Epochs of the snapshots being read, with the number of readers of each
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private volatile long oldestSnapshot = Long.MAX_VALUE;
+
+    /**
+     * Enters the gate before changing any account.
+     *
+     * @return The epoch to stamp the change with, which must be passed to {@link #exit(long)}.
+     */
+    long enter() {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        while (true) {
+            long e = epoch;
+            int slot = slot(e, stripe);
+            running.getAndIncrement(slot);
+            if (epoch == e) {
+                return e;
+            }
+            //A snapshot moved the gate on meanwhile, so the change belongs to the new epoch
+            running.getAndDecrement(slot);
+        }
+    }
+
+    /**
+     * Leaves the gate once the change is complete. This may be called from another thread than the
+     * one which entered.
+     *
+     * @param e The epoch returned by {@link #enter()}.
+     */
+    void exit(long e) {
+        running.getAndDecrement(slot(e, (int) Thread.currentThread().getId() & (STRIPES - 1)));
+    }
+
+    /**
+     * Retrieves the epoch of the oldest snapshot still being read. Balances stamped with an older epoch
+     * than this which have been overwritten again since are no longer needed.
+     *
+     * @return The oldest epoch a snapshot may ask for, or Long.MAX_VALUE if there are no snapshots.
+     */
+    long oldestSnapshot() {
+        return oldestSnapshot;
+    }
+
+    /**
+     * Retrieves the epoch changes are currently stamped with.
+     *
+     * @return The current epoch.
+     */
+    long current() {
+        return epoch;
+    }
+
+    /**
+     * Makes sure epochs handed out from now on are later than the given one. Used when state from
+     * a previous run is loaded.
+     *
+     * @param e An epoch already used.
+     */
+    synchronized void advancePast(long e) {
+        if (epoch <= e) {
+            epoch = e + 1;
+        }
+    }
+
+    /**
+     * Takes a snapshot by moving the gate to a new epoch and waiting for the changes still running in the
+     * old one to complete. This only takes as long as the commands that were already running, and new
+     * commands do not wait for it. Snapshots are taken one at a time, so an epoch is always drained before
+     * the next one starts, but any number of them may be read at once. Every snapshot must be released
+     * with {@link #release(long)}.
+     *
+     * @return The epoch of the snapshot; it holds every change stamped with this epoch or an earlier one.
+     */
+    synchronized long snapshot() {
+        long e = epoch;
+        //Registered before the epoch moves, so changes in the new epoch keep the balances this snapshot needs
+        snapshots.merge(e, 1, Integer::sum);
+        oldestSnapshot = snapshots.firstKey();
+        epoch = e + 1;
+        //A change may leave from another thread than it entered on, so only the total is meaningful
+        while (running(e) != 0) {
+            Thread.onSpinWait();
+        }
+        return e;
+    }
+
+    /**
+     * Tells the gate the snapshot is no longer being read.
+     *
+     * @param e The epoch returned by {@link #snapshot()}.
+     */
+    synchronized void release(long e) {
+        if (snapshots.merge(e, -1, Integer::sum) == 0) {
+            snapshots.remove(e);
+        }
+        oldestSnapshot = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+    }
+
+    private long running(long e) {
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            total += running.get(slot(e, stripe));
+        }
+        return total;
+    }
+
+    private static int slot(long e, int stripe) {
+        return ((int) (e & 1) * STRIPES + stripe) * PADDING;
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class writes the server's log messages without making the threads serving clients wait for the
+ * console or a disk. A message is put into a bounded ring buffer, which takes a compare-and-set and no
+ * lock, and a single background thread writes whatever has collected in the buffer in one go. When the
+ * buffer is full the message is dropped and counted instead of blocking the caller.
+ * <p>
+ * Messages below the level chosen with -Dserver.logLevel are discarded before anything is built, so
+ * connection messages cost nothing when they are turned off.
+ */
+final class EventLog {
+    /**
+     * How important a message is, from the most to the least important.
+     */
+    enum Level {
+        ERROR, INFO, CONNECTION
+    }
+
+    //The least important level written, or null if nothing is written
+    private static final Level LEVEL = level(System.getProperty("server.logLevel", "connection"));
+    //Number of messages the buffer holds, a power of two
+    private static final int CAPACITY =
+            Integer.highestOneBit(Math.max(2, Integer.getInteger("server.logBuffer", 8192)));
+    //The most messages written before the output is flushed
+    private static final int BATCH = 256;
+
+    //The messages waiting for the writer, each one's parts in the slot of these arrays its position maps to
+    private static final Ring ring = new Ring(CAPACITY);
+    private static final long[] times = new long[CAPACITY];
+    private static final Level[] levels = new Level[CAPACITY];
+    private static final String[] texts = new String[CAPACITY];
+    private static final Object[] details = new Object[CAPACITY];
+    private static final LongAdder dropped = new LongAdder();
+    private static final Thread writer;
+    private static volatile boolean closing;
+
+    static {
+        writer = new Thread(EventLog::write, "event-log");
+        writer.setDaemon(true);
+        if (LEVEL != null) {
+            writer.start();
+            //Messages still in the buffer when the server stops are written out
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                closing = true;
+                LockSupport.unpark(writer);
+                try {
+                    writer.join(1000);
+                } catch (InterruptedException e) {
+                }
+            }, "event-log-shutdown"));
+        }
+    }
+
+    private EventLog() {
+    }
+
+    /**
+     * Checks whether messages of a level are written.
+     *
+     * @param level The level.
+     * @return true if such messages are written.
+     */
+    static boolean enabled(Level level) {
+        return LEVEL != null && level.compareTo(LEVEL) <= 0;
+    }
+
+    /**
+     * Logs a message.
+     *
+     * @param level The level of the message.
+     * @param text  The message.
+     */
+    static void log(Level level, String text) {
+        log(level, text, null);
+    }
+
+    /**
+     * Logs a message made of a text and a value. The value is turned into text by the writer thread, so
+     * the caller does not pay for it.
+     *
+     * @param level  The level of the message.
+     * @param text   The start of the message.
+     * @param detail A value written right after the text, or null.
+     */
+    static void log(Level level, String text, Object detail) {
+        if (!enabled(level)) {
+            return;
+        }
+        long position = ring.claim();
+        if (position < 0) {
+            dropped.increment();
+            return;
+        }
+        int slot = ring.slot(position);
+        times[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        texts[slot] = text;
+        details[slot] = detail;
+        ring.publish(position);
+    }
+
+    /**
+     * Retrieves how many messages were dropped because the buffer was full.
+     *
+     * @return The number of dropped messages.
+     */
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes messages until the server stops. Runs on the writer thread only.
+     */
+    private static void write() {
+        String file = System.getProperty("server.logFile");
+        Writer out;
+        try {
+            OutputStream stream = file == null ? System.out : new FileOutputStream(file, true);
+            out = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.out.println("Error: log file " + e);
+            out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        }
+        StringBuilder line = new StringBuilder();
+        long reported = 0;
+        while (true) {
+            try {
+                int written = 0;
+                while (written < BATCH && take(line)) {
+                    out.write(line.toString());
+                    written++;
+                }
+                long lost = dropped.sum();
+                if (lost != reported) {
+                    format(line, System.currentTimeMillis(), Level.ERROR, "Log messages dropped so far: ", lost);
+                    out.write(line.toString());
+                    reported = lost;
+                    written++;
+                }
+                if (written > 0) {
+                    out.flush();
+                    continue;
+                }
+                if (closing) {
+                    return;
+                }
+                //Waking up now and then to report dropped messages
+                ring.await(TimeUnit.MILLISECONDS.toNanos(100));
+            } catch (IOException e) {
+                //Nowhere left to report it; keep emptying the buffer so callers are not affected
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest message from the buffer.
+     *
+     * @param line Receives the message as a line of text.
+     * @return false if the buffer is empty.
+     */
+    private static boolean take(StringBuilder line) {
+        if (!ring.ready()) {
+            return false;
+        }
+        int slot = ring.slot(ring.head());
+        format(line, times[slot], levels[slot], texts[slot], details[slot]);
+        levels[slot] = null;
+        texts[slot] = null;
+        details[slot] = null;
+        ring.advance();
+        return true;
+    }
+
+    private static void format(StringBuilder line, long time, Level level, String text, Object detail) {
+        line.setLength(0);
+        line.append(Instant.ofEpochMilli(time)).append(' ').append(level).append(' ').append(text);
+        if (detail != null) {
+            line.append(detail);
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private static Level level(String name) {
+        if (name.equalsIgnoreCase("off")) {
+            return null;
+        }
+        return Level.valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,156 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * This class does the arithmetic of amounts and rates, which are kept as fixed-point numbers: a long
+ * counting millionths, so 1.5 is 1500000. Adding and subtracting such numbers is exact, unlike adding
+ * floats, so balances do not drift however many changes are made to them. Conversions divide, so their
+ * results are rounded to the nearest millionth, halves going to the even neighbour.
+ * <p>
+ * A result which does not fit in a long throws an ArithmeticException instead of wrapping around.
+ * Only products too large for a long go through BigInteger; every other operation works on primitives
+ * and allocates nothing.
+ */
+final class Fixed {
+    //Number of decimal digits after the point
+    static final int DIGITS = 6;
+    //The fixed-point value of 1
+    static final long ONE = 1_000_000;
+    //The most characters format() writes, as for -9223372036854.775808
+    static final int MAX_LENGTH = 21;
+
+    private static final BigInteger BIG_ONE = BigInteger.valueOf(ONE);
+
+    private Fixed() {
+    }
+
+    /**
+     * Tells whether an amount can be added to a balance without going out of range.
+     *
+     * @return true if the sum fits in a long.
+     */
+    static boolean canAdd(long balance, long amount) {
+        long sum = balance + amount;
+        //Only adding two numbers of the same sign can overflow, and it then flips the sign
+        return ((balance ^ sum) & (amount ^ sum)) >= 0;
+    }
+
+    /**
+     * Converts an amount of arian to pres.
+     *
+     * @param arian An amount of arian.
+     * @param rate  How many units of pres equal one unit of arian.
+     * @return arian * rate, rounded.
+     */
+    static long toPres(long arian, long rate) {
+        long high = Math.multiplyHigh(arian, rate);
+        long low = arian * rate;
+        //The product fits in a long when the high half only repeats its sign bit
+        if (high == low >> 63) {
+            return divide(low, ONE);
+        }
+        return round(BigInteger.valueOf(arian).multiply(BigInteger.valueOf(rate)), BIG_ONE);
+    }
+
+    /**
+     * Converts an amount of pres to arian.
+     *
+     * @param pres An amount of pres.
+     * @param rate How many units of pres equal one unit of arian, greater than 0.
+     * @return pres / rate, rounded.
+     */
+    static long toArian(long pres, long rate) {
+        long high = Math.multiplyHigh(pres, ONE);
+        long low = pres * ONE;
+        if (high == low >> 63) {
+            return divide(low, rate);
+        }
+        return round(BigInteger.valueOf(pres).multiply(BIG_ONE), BigInteger.valueOf(rate));
+    }
+
+    /**
+     * Divides, rounding to the nearest integer and halves to the even one.
+     *
+     * @param divisor Greater than 0.
+     */
+    static long divide(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        long remainder = Math.abs(dividend % divisor);
+        //Comparing the remainder with what is left of the divisor, as doubling it could overflow
+        if (remainder > divisor - remainder || (remainder == divisor - remainder && (quotient & 1) != 0)) {
+            quotient += dividend < 0 ? -1 : 1;
+        }
+        return quotient;
+    }
+
+    private static long round(BigInteger dividend, BigInteger divisor) {
+        return new BigDecimal(dividend).divide(new BigDecimal(divisor), 0, RoundingMode.HALF_EVEN)
+                .longValueExact();
+    }
+
+    /**
+     * Converts a decimal number, rounding it to the nearest millionth.
+     *
+     * @param value Any decimal number.
+     * @return The fixed-point value.
+     * @throws ArithmeticException If the number is too large for a fixed-point value.
+     */
+    static long of(BigDecimal value) {
+        //Numbers far out of range would take very long to scale, so they are sorted out from their digit count
+        long magnitude = (long) value.precision() - value.scale();
+        if (value.signum() == 0 || magnitude < -DIGITS) {
+            return 0;
+        }
+        if (magnitude > 19) {
+            throw new ArithmeticException("Out of range: " + value);
+        }
+        return value.setScale(DIGITS, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Writes a fixed-point value in decimal, with as few digits after the point as it needs but at least
+     * one, e.g. "5.0" or "-0.125".
+     *
+     * @param value The fixed-point value.
+     * @param to    Receives the characters from index 0, at least {@link #MAX_LENGTH} long.
+     * @return The number of characters written.
+     */
+    static int format(long value, char[] to) {
+        //Digits are taken from a negative value, as the most negative long has no positive counterpart
+        long rest = value < 0 ? value : -value;
+        //Writing from the end of the buffer, then moving the characters to its start
+        int pos = MAX_LENGTH;
+        boolean significant = false;
+        for (int i = 0; i < DIGITS; i++) {
+            int digit = (int) -(rest % 10);
+            rest /= 10;
+            if (digit != 0 || significant || i == DIGITS - 1) {
+                significant = true;
+                to[--pos] = (char) ('0' + digit);
+            }
+        }
+        to[--pos] = '.';
+        do {
+            to[--pos] = (char) ('0' - rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            to[--pos] = '-';
+        }
+        int length = MAX_LENGTH - pos;
+        System.arraycopy(to, pos, to, 0, length);
+        return length;
+    }
+
+    /**
+     * Writes a fixed-point value in decimal, see {@link #format(long, char[])}.
+     *
+     * @param value The fixed-point value.
+     * @return The decimal number.
+     */
+    static String toString(long value) {
+        char[] chars = new char[MAX_LENGTH];
+        return new String(chars, 0, format(value, chars));
+    }
+}
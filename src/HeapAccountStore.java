@@ -0,0 +1,76 @@
+import java.io.IOException;
+
+/**
+ * This class keeps every account as an {@link Account} object on the heap, indexed by an
+ * {@link AccountRegistry}. It is the default store.
+ */
+class HeapAccountStore implements AccountStore {
+    private final AccountRegistry accounts = new AccountRegistry();
+    //Whether addUnlocked is used, which costs every lock a new balance
+    private final boolean lockFree;
+
+    /**
+     * Creates an empty store.
+     *
+     * @param lockFree true if {@link #addUnlocked} is used.
+     */
+    HeapAccountStore(boolean lockFree) {
+        this.lockFree = lockFree;
+    }
+
+    @Override
+    public boolean open(int accNum, long epoch) {
+        return accounts.putIfAbsent(new Account(accNum, epoch)) == null;
+    }
+
+    @Override
+    public boolean restore(int accNum, long arian, long pres) {
+        return accounts.putIfAbsent(new Account(accNum, arian, pres)) == null;
+    }
+
+    @Override
+    public boolean exists(int accNum) {
+        return accounts.get(accNum) != null;
+    }
+
+    @Override
+    public void lock(int accNum) {
+        if (lockFree) {
+            accounts.get(accNum).lockChecked();
+        } else {
+            accounts.get(accNum).lock();
+        }
+    }
+
+    @Override
+    public void unlock(int accNum) {
+        accounts.get(accNum).unlock();
+    }
+
+    @Override
+    public boolean canAdd(int accNum, long arian, long pres) {
+        return accounts.get(accNum).canAdd(arian, pres);
+    }
+
+    @Override
+    public void add(int accNum, long arian, long pres, long epoch, long oldest) {
+        accounts.get(accNum).add(arian, pres, epoch, oldest);
+    }
+
+    @Override
+    public long addUnlocked(int accNum, long arian, long pres, long epoch, long oldest, Log log)
+            throws IOException {
+        return accounts.get(accNum).addUnlocked(arian, pres, epoch, oldest, log);
+    }
+
+    @Override
+    public void forEach(long snapshot, Visitor visitor) throws IOException {
+        for (Account a : accounts.inOrder()) {
+            Account.Balance b = a.getBalance(snapshot);
+            //Accounts opened after the snapshot have no balance in it
+            if (b != null) {
+                visitor.account(a.getAccNum(), b.getArian(), b.getPres());
+            }
+        }
+    }
+}
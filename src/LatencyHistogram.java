@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts durations in buckets whose width grows with the duration, in the manner of an HDR
+ * histogram: every power of two is split into 16 equal buckets, so any recorded value is known to within
+ * about 6% however small or large it is. Recording is a single atomic increment in a preallocated array
+ * and never allocates. There is a copy of the array for every processor, and each thread keeps a probe
+ * choosing its copy; a thread which finds another one updating the same counter moves on to another copy,
+ * so threads soon settle on copies of their own.
+ */
+class LatencyHistogram {
+    //Each power of two is split into 2^SUB_BITS buckets
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    //Values below SUB_COUNT get a bucket each, then SUB_COUNT buckets for every power of two up to 2^63
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+    //Number of copies of the counters, the number of processors rounded up to a power of two
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+    //Longs left unused before and after the counters, so copies never share a cache line
+    private static final int PADDING = 16;
+    //Probes handed to new threads, spread apart so that consecutive threads get different copies
+    private static final AtomicInteger NEXT_PROBE = new AtomicInteger();
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(
+            () -> new int[]{NEXT_PROBE.getAndAdd(0x9E3779B9) | 1});
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(PADDING + BUCKETS + PADDING);
+        }
+    }
+
+    /**
+     * Counts a duration.
+     *
+     * @param nanos The duration in nanoseconds; negative values count as 0.
+     */
+    void record(long nanos) {
+        int[] probe = PROBE.get();
+        int i = PADDING + bucket(Math.max(0, nanos));
+        AtomicLongArray s = stripes[probe[0] & (STRIPES - 1)];
+        long count = s.get(i);
+        if (!s.compareAndSet(i, count, count + 1)) {
+            //Another thread counts in this copy too, so this one moves on to another
+            int p = probe[0];
+            p ^= p << 13;
+            p ^= p >>> 17;
+            p ^= p << 5;
+            probe[0] = p;
+            stripes[p & (STRIPES - 1)].getAndIncrement(i);
+        }
+    }
+
+    /**
+     * Finds the duration below which the given share of all recorded durations lie.
+     *
+     * @param quantile A share between 0 and 1, e.g. 0.99 for the 99th percentile.
+     * @return The upper end of the bucket holding the percentile in nanoseconds, or 0 if nothing was recorded.
+     */
+    long percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray s : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = s.get(PADDING + i);
+                counts[i] += n;
+                total += n;
+            }
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highest(i);
+            }
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS)) - SUB_COUNT;
+        return (magnitude - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Retrieves the largest value counted in a bucket.
+     */
+    private static long highest(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_COUNT + SUB_BITS - 1;
+        long lowest = (long) (SUB_COUNT + bucket % SUB_COUNT) << (magnitude - SUB_BITS);
+        return lowest + (1L << (magnitude - SUB_BITS)) - 1;
+    }
+}
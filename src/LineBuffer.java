@@ -0,0 +1,202 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * This class collects the bytes received from a client and splits them into lines. A client may send
+ * many lines at once; they are all kept here and handed out one by one, each in the same reused buffer,
+ * so reading plain ASCII lines does not allocate. Like with a Scanner, a line ends with "\n", "\r" or
+ * "\r\n" and is decoded with the default charset.
+ * <p>
+ * Clients using the binary protocol send frames instead of lines, each preceded by its length as a
+ * big-endian int. They are handed out the same way, in a reused buffer.
+ * <p>
+ * Neither a line nor a frame may grow without end. A line longer than {@link #MAX_LINE} bytes is dropped
+ * as it arrives, up to its terminator, and {@link #TOO_LONG} is handed out in its place, so the client can
+ * be told and carry on. A frame longer than {@link #MAX_FRAME} fails the connection.
+ */
+class LineBuffer {
+    private static final int INITIAL_SIZE = 8192;
+    //The longest frame a client may send; a longer one is taken for a client gone wrong
+    static final int MAX_FRAME = 1 << 20;
+    //The longest line a client may send, far longer than any command
+    static final int MAX_LINE = 64 * 1024;
+    //Handed out in place of a line longer than MAX_LINE; compared by identity, and empty like a blank line
+    static final CharSequence TOO_LONG = CharBuffer.allocate(0).asReadOnlyBuffer();
+
+    private byte[] bytes = new byte[INITIAL_SIZE];
+    private ByteBuffer view = ByteBuffer.wrap(bytes);
+    //Received bytes not handed out yet lie between start and end
+    private int start;
+    private int end;
+    //Set after "\r" so that a "\n" right after it does not make an empty line
+    private boolean afterReturn;
+    //Set while the rest of a line longer than MAX_LINE is being dropped
+    private boolean skipping;
+    private final StringBuilder line = new StringBuilder();
+    private ByteBuffer frame = ByteBuffer.allocate(64);
+
+    /**
+     * Reads whatever the stream has available, waiting until at least one byte arrives.
+     *
+     * @param in A stream from the client.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    int read(InputStream in) throws IOException {
+        makeRoom();
+        int n = in.read(bytes, end, bytes.length - end);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    /**
+     * Reads whatever the channel has available without waiting.
+     *
+     * @param channel A channel from the client.
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        view.limit(bytes.length).position(end);
+        int n = channel.read(view);
+        if (n > 0) {
+            end += n;
+        }
+        return n;
+    }
+
+    /**
+     * Retrieves the next complete line received.
+     *
+     * @return The line without its terminator, valid until this buffer is used again, {@link #TOO_LONG}
+     *         for a line longer than {@link #MAX_LINE} bytes, or null if no complete line has been received.
+     */
+    CharSequence nextLine() {
+        if (afterReturn && start < end) {
+            afterReturn = false;
+            if (bytes[start] == '\n') {
+                start++;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                afterReturn = bytes[i] == '\r';
+                CharSequence result = TOO_LONG;
+                if (!skipping && i - start <= MAX_LINE) {
+                    decode(start, i);
+                    result = line;
+                }
+                skipping = false;
+                start = i + 1;
+                return result;
+            }
+        }
+        if (skipping || end - start > MAX_LINE) {
+            //Dropping what has arrived of a line too long to be a command, so it takes no room
+            skipping = true;
+            start = end;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieves the number of bytes received and not handed out yet.
+     *
+     * @return The number of bytes waiting in the buffer.
+     */
+    int pending() {
+        return end - start;
+    }
+
+    /**
+     * Checks whether the client chose the binary protocol, and if so skips its greeting. Called once,
+     * when the first bytes of the connection have been received.
+     *
+     * @return true if the connection starts with {@link CommandParser#GREETING}.
+     */
+    boolean skipGreeting() {
+        if (start < end && bytes[start] == CommandParser.GREETING) {
+            start++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the next complete frame received.
+     *
+     * @return The frame without its length, from the buffer's position to its limit, valid until this
+     *         buffer is used again, or null if no complete frame has been received.
+     */
+    ByteBuffer nextFrame() throws IOException {
+        if (end - start < Integer.BYTES) {
+            return null;
+        }
+        int length = (bytes[start] & 0xFF) << 24 | (bytes[start + 1] & 0xFF) << 16
+                | (bytes[start + 2] & 0xFF) << 8 | bytes[start + 3] & 0xFF;
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (end - start - Integer.BYTES < length) {
+            return null;
+        }
+        if (frame.capacity() < length) {
+            frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+        }
+        frame.clear();
+        frame.put(bytes, start + Integer.BYTES, length).flip();
+        start += Integer.BYTES + length;
+        return frame;
+    }
+
+    /**
+     * Retrieves the last line when the client disconnected without terminating it.
+     *
+     * @return The unterminated line, {@link #TOO_LONG} if it is longer than {@link #MAX_LINE} bytes,
+     *         or null if nothing is left.
+     */
+    CharSequence remainder() {
+        if (skipping || end - start > MAX_LINE) {
+            skipping = false;
+            start = end;
+            return TOO_LONG;
+        }
+        if (start == end) {
+            return null;
+        }
+        decode(start, end);
+        start = end;
+        return line;
+    }
+
+    private void makeRoom() {
+        if (start > 0) {
+            System.arraycopy(bytes, start, bytes, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        if (end == bytes.length) {
+            //A single line or frame does not fit
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            view = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private void decode(int from, int to) {
+        line.setLength(0);
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < 0) {
+                line.setLength(0);
+                line.append(new String(bytes, from, to - from, Charset.defaultCharset()));
+                return;
+            }
+            line.append((char) bytes[i]);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * This class records what the server is doing: how many commands of each kind were run, how many of them
+ * were refused or failed, how long they took, how long they waited for locks, and how many clients are
+ * connected. Counters are LongAdders and durations go into {@link LatencyHistogram}s, so recording never
+ * allocates and threads do not contend on shared counters.
+ * <p>
+ * The metrics are printed by the Stats command and published over JMX.
+ */
+class Metrics implements MetricsMXBean {
+    private static final CommandParser.Command[] COMMANDS = CommandParser.Command.values();
+
+    private final LongAdder active = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    //Indexed by the ordinal of the command
+    private final LongAdder[] counts = new LongAdder[COMMANDS.length];
+    private final LongAdder[] rejected = new LongAdder[COMMANDS.length];
+    private final LongAdder[] errors = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    //Total waiting times in nanoseconds
+    private final LongAdder accountLockWait = new LongAdder();
+    private final LongAdder rateLockWait = new LongAdder();
+    private final LongAdder snapshotWait = new LongAdder();
+
+    Metrics() {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            counts[i] = new LongAdder();
+            rejected[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Publishes the metrics over JMX.
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Server:type=Metrics"));
+        } catch (JMException e) {
+            EventLog.log(EventLog.Level.ERROR, "Error: metrics are not published over JMX ", e);
+        }
+    }
+
+    /**
+     * Records a command which was run.
+     *
+     * @param command The command.
+     * @param nanos   How long it took.
+     * @param applied false if the command was refused, e.g. because an account does not exist.
+     */
+    void command(CommandParser.Command command, long nanos, boolean applied) {
+        int i = command.ordinal();
+        counts[i].increment();
+        if (!applied) {
+            rejected[i].increment();
+        }
+        latencies[i].record(nanos);
+    }
+
+    /**
+     * Records a command which failed with an exception and ended its connection.
+     *
+     * @param command The command.
+     */
+    void error(CommandParser.Command command) {
+        errors[command.ordinal()].increment();
+    }
+
+    void connected() {
+        accepted.increment();
+        active.increment();
+    }
+
+    void disconnected() {
+        active.decrement();
+    }
+
+    /**
+     * Records a connection refused because the server was busy.
+     */
+    void refused() {
+        refused.increment();
+    }
+
+    /**
+     * Records a connection closed because the client sent nothing for too long.
+     */
+    void timedOut() {
+        timedOut.increment();
+    }
+
+    void accountLockWait(long nanos) {
+        accountLockWait.add(nanos);
+    }
+
+    void rateLockWait(long nanos) {
+        rateLockWait.add(nanos);
+    }
+
+    void snapshotWait(long nanos) {
+        snapshotWait.add(nanos);
+    }
+
+    /**
+     * Prints every metric, one per line.
+     *
+     * @param out Where to print.
+     */
+    void print(PrintWriter out) {
+        out.println("Connections active " + active.sum() + ", accepted " + accepted.sum() + ", refused "
+                + refused.sum() + ", timed out " + timedOut.sum());
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram h = latencies[i];
+            out.println(String.format(Locale.ROOT,
+                    "%s count %d, rejected %d, errors %d, latency us p50 %.1f, p99 %.1f, p999 %.1f",
+                    name(COMMANDS[i]), counts[i].sum(), rejected[i].sum(), errors[i].sum(),
+                    h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3));
+        }
+        out.println(String.format(Locale.ROOT, "Wait ms account locks %.1f, rate lock %.1f, snapshots %.1f",
+                getAccountLockWaitMillis(), getRateLockWaitMillis(), getSnapshotWaitMillis()));
+        out.println("Log messages dropped " + getDroppedLogMessages());
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return active.sum();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    @Override
+    public long getRefusedConnections() {
+        return refused.sum();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return sums(counts);
+    }
+
+    @Override
+    public Map<String, Long> getRejectedCounts() {
+        return sums(rejected);
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return sums(errors);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Micros() {
+        return perCommand(h -> h.percentile(0.5) / 1e3);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Micros() {
+        return perCommand(h -> h.percentile(0.99) / 1e3);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP999Micros() {
+        return perCommand(h -> h.percentile(0.999) / 1e3);
+    }
+
+    @Override
+    public double getAccountLockWaitMillis() {
+        return accountLockWait.sum() / 1e6;
+    }
+
+    @Override
+    public double getRateLockWaitMillis() {
+        return rateLockWait.sum() / 1e6;
+    }
+
+    @Override
+    public double getSnapshotWaitMillis() {
+        return snapshotWait.sum() / 1e6;
+    }
+
+    @Override
+    public long getDroppedLogMessages() {
+        return EventLog.getDropped();
+    }
+
+    @Override
+    public String getReport() {
+        StringWriter text = new StringWriter();
+        print(new PrintWriter(text));
+        return text.toString();
+    }
+
+    private static Map<String, Long> sums(LongAdder[] adders) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            result.put(name(COMMANDS[i]), adders[i].sum());
+        }
+        return result;
+    }
+
+    private Map<String, Double> perCommand(ToDoubleFunction<LatencyHistogram> value) {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (int i = 0; i < COMMANDS.length; i++) {
+            result.put(name(COMMANDS[i]), value.applyAsDouble(latencies[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Spells a command the way clients write it, e.g. "Transfer".
+     */
+    private static String name(CommandParser.Command command) {
+        String name = command.name();
+        return name.charAt(0) + name.substring(1).toLowerCase(Locale.ROOT);
+    }
+}
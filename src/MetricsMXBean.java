@@ -0,0 +1,42 @@
+import java.util.Map;
+
+/**
+ * The management interface through which the server's metrics are read over JMX, under the name
+ * "Server:type=Metrics". Maps are keyed by command name.
+ */
+public interface MetricsMXBean {
+    long getActiveConnections();
+
+    long getAcceptedConnections();
+
+    long getRefusedConnections();
+
+    long getTimedOutConnections();
+
+    Map<String, Long> getCommandCounts();
+
+    Map<String, Long> getRejectedCounts();
+
+    Map<String, Long> getErrorCounts();
+
+    Map<String, Double> getLatencyP50Micros();
+
+    Map<String, Double> getLatencyP99Micros();
+
+    Map<String, Double> getLatencyP999Micros();
+
+    double getAccountLockWaitMillis();
+
+    double getRateLockWaitMillis();
+
+    double getSnapshotWaitMillis();
+
+    long getDroppedLogMessages();
+
+    /**
+     * Retrieves every metric as the text the Stats command prints.
+     *
+     * @return One line per metric.
+     */
+    String getReport();
+}
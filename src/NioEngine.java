@@ -0,0 +1,499 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class serves every connected client from a single selector thread instead of a thread per client.
+ * The selector thread only accepts connections, reads what the clients send and writes responses back.
+ * The commands themselves run on a small pool of workers through {@link Server.Talk#execute}, so they
+ * behave exactly as they do with a thread per client. Commands of one client are always run one at a
+ * time and in the order they were received.
+ * <p>
+ * A client which sends commands faster than it reads their responses is held back: once more than
+ * {@link #MAX_OUTPUT} bytes of responses wait for it, its commands stop running and it is not read from
+ * until it has taken them all, as a client of a thread of its own would be held back by a full socket.
+ * A response still being written, such as State, pauses the same way until the client has taken enough.
+ */
+class NioEngine {
+    //Responses longer than this many bytes start going out before the command completes
+    private static final int CHUNK_SIZE = 64 * 1024;
+    //Responses waiting for a client beyond which its commands are held back
+    private static final int MAX_OUTPUT = 1 << 20;
+    //Bytes received and not run yet beyond which a client is not read from; room for the longest frame
+    private static final int MAX_INPUT = 2 * LineBuffer.MAX_FRAME;
+    //How long a connection may send nothing, 0 if forever
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Admission.IDLE_MILLIS);
+
+    private final int port;
+    private final ExecutorService workers;
+    private final Selector selector;
+    //Connections which have new output or have finished, waiting for the selector thread to pick them up
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates the engine without binding the port yet.
+     *
+     * @param port        The port to listen on.
+     * @param workerCount The number of threads running commands.
+     */
+    NioEngine(int port, int workerCount) throws IOException {
+        this.port = port;
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Accepts and serves connections forever.
+     */
+    void run() throws IOException {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            listener.configureBlocking(false);
+            listener.register(selector, SelectionKey.OP_ACCEPT);
+            long checked = System.nanoTime();
+            while (true) {
+                //Waking up regularly to look for idle connections, if they are closed
+                selector.select(Admission.IDLE_MILLIS == 0 ? 0 : Math.max(1, Admission.IDLE_MILLIS / 2));
+                if (IDLE_NANOS > 0 && System.nanoTime() - checked >= IDLE_NANOS / 2) {
+                    checked = System.nanoTime();
+                    closeIdle(checked);
+                }
+                for (Connection c = ready.poll(); c != null; c = ready.poll()) {
+                    c.updateInterest();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept(listener);
+                        continue;
+                    }
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            c.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            c.write();
+                        }
+                    } catch (IOException e) {
+                        EventLog.log(EventLog.Level.ERROR, "Error:" + c.socket + " " + e);
+                        c.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts a pending connection, if there is one, and starts reading from it. A connection the server
+     * cannot take is refused at once.
+     *
+     * @param listener The listening channel.
+     */
+    private void accept(ServerSocketChannel listener) throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        if (!Admission.connect()) {
+            //Still blocking, as the channel of an accepted connection starts out
+            Admission.refuse(channel.socket());
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection c = new Connection(channel);
+        c.key = channel.register(selector, SelectionKey.OP_READ, c);
+        EventLog.log(EventLog.Level.CONNECTION, "Connected: ", c.socket);
+        Server.metrics.connected();
+    }
+
+    /**
+     * Closes every connection which has sent nothing for too long while none of its commands was running.
+     *
+     * @param now The current time from System.nanoTime().
+     */
+    private void closeIdle(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                ((Connection) key.attachment()).closeIfIdle(now);
+            }
+        }
+    }
+
+    /**
+     * The state of a single client. Input is only touched by the selector thread, while the queues
+     * shared with the workers are guarded by the connection itself.
+     */
+    private final class Connection {
+        private final SocketChannel channel;
+        //Kept as text because the socket no longer describes its peer once closed
+        private final String socket;
+        private SelectionKey key;
+        //Bytes received and responses waiting to be written
+        private final LineBuffer input = new LineBuffer();
+        private final Queue<ByteBuffer> output = new ArrayDeque<>();
+        //The number of bytes in output
+        private long queued;
+        //Whether bytes arrived since a worker last found no complete line or frame
+        private boolean received;
+        //Whether the client has disconnected
+        private boolean eof;
+        //Whether a worker is currently running this connection's commands
+        private boolean scheduled;
+        //Whether the client has sent Close, failed, or disconnected; no further commands are run
+        private boolean finished;
+        //When bytes last arrived, from System.nanoTime()
+        private long lastReceived = System.nanoTime();
+        //When the client last took output, from System.nanoTime()
+        private long lastSent = System.nanoTime();
+        //Only used by the worker currently running this connection's commands
+        private final Output buffer = new Output();
+        private final CommandParser command = new CommandParser();
+        private final Admission.Limiter limiter = Admission.newLimiter();
+        //Whether the connection has been closed
+        private boolean closed;
+        //Set when the connection is closed for being idle, until the worker has told the client
+        private boolean idle;
+        //Chosen by the first worker, from the first bytes the client sent
+        private boolean binary;
+        private Response out;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket().toString();
+        }
+
+        /**
+         * Reads whatever the client has sent and makes sure a worker runs the lines received.
+         */
+        void read() throws IOException {
+            boolean schedule;
+            synchronized (this) {
+                int n = input.read(channel);
+                if (n == 0) {
+                    return;
+                } else if (n < 0) {
+                    eof = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                received = true;
+                lastReceived = System.nanoTime();
+                schedule = !scheduled;
+                scheduled = true;
+                if (input.pending() >= MAX_INPUT) {
+                    //The commands received are not run as fast as they arrive; the client waits until they are
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (schedule) {
+                workers.execute(this::process);
+            }
+        }
+
+        /**
+         * Runs every complete line or frame received on a worker thread, then passes all of their responses
+         * to the selector thread at once.
+         */
+        private void process() {
+            if (out == null) {
+                binary = skipGreeting();
+                out = binary ? new BinaryResponse(buffer) : new TextResponse(new PrintWriter(buffer));
+            }
+            boolean more = true;
+            while (more) {
+                try {
+                    if (takeIdle()) {
+                        out.send(Reply.IDLE);
+                    }
+                    if (binary) {
+                        for (ByteBuffer frame = nextFrame(); frame != null; frame = nextFrame()) {
+                            if (!Server.Talk.execute(command, frame, out, limiter)) {
+                                finish();
+                            }
+                        }
+                    } else {
+                        for (CharSequence line = nextLine(); line != null; line = nextLine()) {
+                            if (!Server.Talk.execute(command, line, out, limiter)) {
+                                finish();
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    EventLog.log(EventLog.Level.ERROR, "Error:" + socket + " " + e);
+                    finish();
+                }
+                try {
+                    //Responses written before a failure are still sent
+                    out.flush();
+                } catch (IOException e) {
+                }
+                synchronized (this) {
+                    if (buffer.size() > 0) {
+                        queue(buffer.take());
+                    }
+                    //More bytes may have arrived while the last lines were being run; they wait for a slow reader
+                    more = received && !finished && queued <= MAX_OUTPUT;
+                    scheduled = more;
+                }
+            }
+            ready.add(this);
+            selector.wakeup();
+        }
+
+        private synchronized boolean takeIdle() {
+            boolean wasIdle = idle;
+            idle = false;
+            return wasIdle;
+        }
+
+        private synchronized boolean skipGreeting() {
+            return input.skipGreeting();
+        }
+
+        private synchronized CharSequence nextLine() {
+            if (finished || queued > MAX_OUTPUT) {
+                return null;
+            }
+            CharSequence line = input.nextLine();
+            if (line == null) {
+                received = false;
+                if (eof) {
+                    //The client may have disconnected without ending its last line
+                    finished = true;
+                    line = input.remainder();
+                }
+            }
+            return line;
+        }
+
+        private synchronized ByteBuffer nextFrame() throws IOException {
+            if (finished || queued > MAX_OUTPUT) {
+                return null;
+            }
+            ByteBuffer frame = input.nextFrame();
+            if (frame == null) {
+                received = false;
+                //A frame cut off by the client disconnecting is dropped
+                finished = eof;
+            }
+            return frame;
+        }
+
+        /**
+         * Closes the connection if the client has sent nothing for too long. The client is told why by a
+         * worker, unless it is not even reading what was sent to it before; then it is closed right away.
+         *
+         * @param now The current time from System.nanoTime().
+         */
+        void closeIfIdle(long now) {
+            boolean tell;
+            synchronized (this) {
+                if (finished || scheduled || now - lastReceived < IDLE_NANOS) {
+                    return;
+                }
+                finished = true;
+                tell = output.isEmpty();
+                idle = tell;
+                scheduled = tell;
+            }
+            Server.metrics.timedOut();
+            EventLog.log(EventLog.Level.CONNECTION, "Idle: ", socket);
+            if (tell) {
+                workers.execute(this::process);
+            } else {
+                close();
+            }
+        }
+
+        /**
+         * Stops running any further commands of this connection.
+         */
+        private synchronized void finish() {
+            finished = true;
+        }
+
+        /**
+         * Adds a response to the output waiting for the client.
+         */
+        private synchronized void queue(ByteBuffer response) {
+            output.add(response);
+            queued += response.remaining();
+        }
+
+        /**
+         * Holds the worker back while more than {@link #MAX_OUTPUT} bytes wait for the client, so a long
+         * response such as State is written no faster than the client takes it. Once the client has taken
+         * nothing for as long as a connection may be idle, the connection is closed instead.
+         */
+        private void awaitRoom() {
+            boolean stuck = false;
+            synchronized (this) {
+                try {
+                    while (queued > MAX_OUTPUT && !closed) {
+                        if (IDLE_NANOS == 0) {
+                            wait();
+                            continue;
+                        }
+                        long left = lastSent + IDLE_NANOS - System.nanoTime();
+                        if (left <= 0) {
+                            stuck = true;
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (stuck) {
+                Server.metrics.timedOut();
+                EventLog.log(EventLog.Level.CONNECTION, "Idle: ", socket);
+                close();
+            }
+        }
+
+        /**
+         * Asks the selector to tell when the client is ready to receive output, and to read from the client
+         * unless it is held back.
+         */
+        void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE | readInterest());
+            }
+        }
+
+        /**
+         * Works out whether to read from the client: not once it has disconnected, nor while responses or
+         * commands have piled up.
+         *
+         * @return OP_READ or 0.
+         */
+        private synchronized int readInterest() {
+            return eof || queued > MAX_OUTPUT || input.pending() >= MAX_INPUT ? 0 : SelectionKey.OP_READ;
+        }
+
+        /**
+         * Writes as much queued output as the client accepts and closes the connection once
+         * everything has been sent after it finished. A worker held back in the middle of a response goes
+         * on as soon as there is room again; once the client has taken everything, the commands held back
+         * for it are run.
+         */
+        void write() throws IOException {
+            boolean done;
+            boolean resume;
+            synchronized (this) {
+                try {
+                    while (!output.isEmpty()) {
+                        ByteBuffer head = output.peek();
+                        int n = channel.write(head);
+                        if (n > 0) {
+                            queued -= n;
+                            lastSent = System.nanoTime();
+                        }
+                        if (head.hasRemaining()) {
+                            return;
+                        }
+                        output.poll();
+                    }
+                } finally {
+                    if (queued <= MAX_OUTPUT) {
+                        notifyAll();
+                    }
+                }
+                done = finished && !scheduled;
+                //Bytes not looked at while nothing is scheduled were held back by the output
+                resume = received && !finished && !scheduled;
+                scheduled |= resume;
+            }
+            key.interestOps(readInterest());
+            if (resume) {
+                workers.execute(this::process);
+            }
+            if (done) {
+                close();
+            }
+        }
+
+        /**
+         * Collects the responses written by the worker. Once a response grows past a chunk, what has been
+         * collected so far is passed to the selector thread straight away, so a long response such as the
+         * state of many accounts is sent while it is still being written, and the worker waits for room
+         * before writing more.
+         */
+        private final class Output extends ByteArrayOutputStream {
+            @Override
+            public synchronized void write(int b) {
+                super.write(b);
+                if (count >= CHUNK_SIZE) {
+                    pass();
+                }
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                if (count >= CHUNK_SIZE) {
+                    pass();
+                }
+            }
+
+            /**
+             * Removes everything collected so far.
+             *
+             * @return The collected bytes ready to be written to the client.
+             */
+            synchronized ByteBuffer take() {
+                ByteBuffer b = ByteBuffer.wrap(toByteArray());
+                reset();
+                return b;
+            }
+
+            private void pass() {
+                if (!channel.isOpen()) {
+                    //Nobody is left to take the rest of the response
+                    reset();
+                    return;
+                }
+                queue(take());
+                ready.add(Connection.this);
+                selector.wakeup();
+                awaitRoom();
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                //Both the selector thread and a worker held back by the output may close the connection
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                //A worker waiting for room in the output gives up
+                notifyAll();
+            }
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+            EventLog.log(EventLog.Level.CONNECTION, "Closed: ", socket);
+            Server.metrics.disconnected();
+            Admission.disconnect();
+        }
+    }
+}
@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * This class keeps every account as a fixed-width record in direct memory outside the Java heap, so
+ * millions of accounts cost neither objects nor garbage collection work. The records themselves form an
+ * open-addressing hash table keyed by account number with linear probing. The table is sized once for
+ * a given number of accounts and never grows.
+ * <p>
+ * Each record holds two lock words: the lock of the account, held by commands for as long as they need
+ * the account, and a latch held only while the record is read or written. Balances replaced while a
+ * snapshot is being read are kept on the heap in a {@link SlotVersions} map keyed by slot, so only accounts
+ * changed during a snapshot cost heap. Entries no snapshot needs any more are dropped when their account
+ * next changes, and all of them when a snapshot is released.
+ */
+class OffHeapAccountStore implements AccountStore {
+    //Record layout
+    private static final int USED = 0;
+    private static final int ACC_NUM = 4;
+    private static final int LOCK = 8;
+    private static final int LATCH = 12;
+    private static final int EPOCH = 16;
+    private static final int ARIAN = 24;
+    private static final int PRES = 32;
+    private static final int RECORD_SIZE = 40;
+    //States of the USED word: free, being filled in by an opening, and holding an account
+    private static final int FREE = 0;
+    private static final int CLAIMED = 1;
+    private static final int READY = 2;
+    //Records per direct buffer, must be a power of two
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    //How many times a lock is tried before giving up the processor between tries, and before parking
+    private static final int SPINS = 100;
+    private static final int YIELDS = 10;
+    //The shortest and longest a waiter parks between tries; the time doubles with every try
+    private static final long MIN_PARK_NANOS = 1_000;
+    private static final long MAX_PARK_NANOS = 1_000_000;
+    //Fewest account numbers opened since the last merge that are merged into the ordered run
+    private static final int MERGE_MIN = 1024;
+    //The most accounts a store can hold, as the table's number of slots must fit in an int
+    static final int MAX_CAPACITY = 1 << 29;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer[] chunks;
+    private final int mask;
+    private final int capacity;
+    //Accounts opened or about to be, never above the capacity
+    private final AtomicInteger claimed = new AtomicInteger();
+    //Balances replaced while a snapshot may still read them, newest first, by slot; each entry is guarded by
+    //the latch of its record
+    private final SlotVersions older = new SlotVersions();
+    //Account numbers in order, as a sorted run in one of two direct buffers of the capacity's size, each
+    //holding the run before it merged with the numbers opened since; all guarded by this
+    private final ByteBuffer[][] runs = new ByteBuffer[2][];
+    private final int[] runReaders = new int[2];
+    private int run;
+    private int runLength;
+    private boolean merging;
+    //Merges the numbers opened since into the run, started when the first merge is due
+    private Thread merger;
+    //Account numbers opened since the run was merged, in the order they were opened; guarded by this
+    private int[] recent = new int[MERGE_MIN];
+    private int recentCount;
+
+    /**
+     * Allocates the records for the given number of accounts.
+     *
+     * @param capacity The largest number of accounts the store can hold.
+     * @throws IllegalArgumentException If the capacity is below 1 or above {@link #MAX_CAPACITY}.
+     */
+    OffHeapAccountStore(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("An account store holds from 1 to " + MAX_CAPACITY
+                    + " accounts, not " + capacity);
+        }
+        //Keeping the table at most half full keeps probe sequences short
+        int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        this.capacity = capacity;
+        this.mask = slots - 1;
+        this.chunks = new ByteBuffer[Math.max(1, slots >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(Math.min(slots, 1 << CHUNK_SHIFT) * RECORD_SIZE)
+                    .order(ByteOrder.nativeOrder());
+        }
+        for (int r = 0; r < runs.length; r++) {
+            runs[r] = new ByteBuffer[(capacity + CHUNK_MASK) >>> CHUNK_SHIFT];
+            for (int i = 0; i < runs[r].length; i++) {
+                runs[r][i] = ByteBuffer.allocateDirect(Math.min(capacity - (i << CHUNK_SHIFT), 1 << CHUNK_SHIFT)
+                        * Integer.BYTES).order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    @Override
+    public boolean claim() {
+        for (int n = claimed.get(); n < capacity; n = claimed.get()) {
+            if (claimed.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean open(int accNum, long epoch) {
+        if (insert(accNum, 0, 0, epoch)) {
+            return true;
+        }
+        //The account already exists, so it takes no room
+        claimed.decrementAndGet();
+        return false;
+    }
+
+    @Override
+    public boolean restore(int accNum, long arian, long pres) {
+        if (!claim()) {
+            throw new IllegalStateException("The account store is full (" + capacity + " accounts)");
+        }
+        if (insert(accNum, arian, pres, 0)) {
+            return true;
+        }
+        claimed.decrementAndGet();
+        return false;
+    }
+
+    @Override
+    public boolean exists(int accNum) {
+        return find(accNum) >= 0;
+    }
+
+    @Override
+    public void lock(int accNum) {
+        int slot = find(accNum);
+        acquire(chunk(slot), offset(slot) + LOCK);
+    }
+
+    @Override
+    public void unlock(int accNum) {
+        int slot = find(accNum);
+        INT.setVolatile(chunk(slot), offset(slot) + LOCK, 0);
+    }
+
+    @Override
+    public boolean canAdd(int accNum, long arian, long pres) {
+        int slot = find(accNum);
+        ByteBuffer b = chunk(slot);
+        int off = offset(slot);
+        acquire(b, off + LATCH);
+        try {
+            return Fixed.canAdd(b.getLong(off + ARIAN), arian) && Fixed.canAdd(b.getLong(off + PRES), pres);
+        } finally {
+            INT.setVolatile(b, off + LATCH, 0);
+        }
+    }
+
+    @Override
+    public void add(int accNum, long arian, long pres, long epoch, long oldest) {
+        try {
+            change(accNum, arian, pres, epoch, oldest, null);
+        } catch (IOException e) {
+            //Only appending to the log throws it, and there is no log to append to
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public long addUnlocked(int accNum, long arian, long pres, long epoch, long oldest, Log log)
+            throws IOException {
+        return change(accNum, arian, pres, epoch, oldest, log);
+    }
+
+    /**
+     * Changes the balances of an account under its latch.
+     *
+     * @param log Appends the change to the log while the latch is held, or null for a change made by the holder
+     *            of the account's lock, who logs it itself.
+     * @return The position returned by the log, or 0 without one.
+     */
+    private long change(int accNum, long arian, long pres, long epoch, long oldest, Log log) throws IOException {
+        boolean unlocked = log != null;
+        int slot = find(accNum);
+        ByteBuffer b = chunk(slot);
+        int off = offset(slot);
+        acquire(b, off + LATCH);
+        //The holder of the lock checks the balances under the latch too, so they cannot change after its check
+        while (unlocked && (int) INT.getVolatile(b, off + LOCK) != 0) {
+            INT.setVolatile(b, off + LATCH, 0);
+            awaitFree(b, off + LOCK);
+            acquire(b, off + LATCH);
+        }
+        try {
+            long current = b.getLong(off + EPOCH);
+            long a = b.getLong(off + ARIAN);
+            long p = b.getLong(off + PRES);
+            //Worked out before anything is written, so a change going out of range leaves the record as it was
+            long nextArian = Math.addExact(a, arian);
+            long nextPres = Math.addExact(p, pres);
+            //Appended under the latch, so no other change to the account can come between the log and the record
+            long position = unlocked ? log.append() : 0;
+            if (current < epoch) {
+                if (oldest < epoch) {
+                    //A snapshot taken between the two epochs may still ask for the balance being replaced
+                    Account.Balance v = new Account.Balance(a, p, current, older.get(slot));
+                    Account.Balance.prune(v, oldest);
+                    older.put(slot, v);
+                } else if (!older.isEmpty()) {
+                    older.remove(slot);
+                }
+            } else if (current > epoch) {
+                older.put(slot, Account.Balance.behind(older.get(slot), arian, pres, epoch));
+            }
+            b.putLong(off + ARIAN, nextArian);
+            b.putLong(off + PRES, nextPres);
+            b.putLong(off + EPOCH, Math.max(current, epoch));
+            return position;
+        } finally {
+            INT.setVolatile(b, off + LATCH, 0);
+        }
+    }
+
+    @Override
+    public void released(LongSupplier oldestSnapshot) {
+        if (older.isEmpty()) {
+            return;
+        }
+        for (int slot : older.slots()) {
+            ByteBuffer b = chunk(slot);
+            int off = offset(slot);
+            acquire(b, off + LATCH);
+            try {
+                long epoch = b.getLong(off + EPOCH);
+                //Read after the record, so a snapshot whose balance a change just kept here is already counted
+                long oldest = oldestSnapshot.getAsLong();
+                if (epoch <= oldest) {
+                    older.remove(slot);
+                } else {
+                    Account.Balance.prune(older.get(slot), oldest);
+                }
+            } finally {
+                INT.setVolatile(b, off + LATCH, 0);
+            }
+        }
+    }
+
+    @Override
+    public void forEach(long snapshot, Visitor visitor) throws IOException {
+        int r;
+        int length;
+        int[] opened;
+        synchronized (this) {
+            r = run;
+            length = runLength;
+            opened = Arrays.copyOf(recent, recentCount);
+            runReaders[r]++;
+        }
+        try {
+            //Only the numbers opened since the last merge are sorted here, and they are few
+            Arrays.sort(opened);
+            int i = 0;
+            int j = 0;
+            while (i < length || j < opened.length) {
+                if (j == opened.length || (i < length && runAt(r, i) < opened[j])) {
+                    visit(runAt(r, i++), snapshot, visitor);
+                } else {
+                    visit(opened[j++], snapshot, visitor);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                runReaders[r]--;
+                //A merge may have waited for this reader to leave the other buffer
+                if (mergeDue()) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Passes the balances of an account in a snapshot to a visitor, unless it was opened after the snapshot.
+     */
+    private void visit(int accNum, long snapshot, Visitor visitor) throws IOException {
+        int slot = find(accNum);
+        ByteBuffer b = chunk(slot);
+        int off = offset(slot);
+        long arian;
+        long pres;
+        acquire(b, off + LATCH);
+        try {
+            if (b.getLong(off + EPOCH) <= snapshot) {
+                arian = b.getLong(off + ARIAN);
+                pres = b.getLong(off + PRES);
+            } else {
+                Account.Balance v = older.get(slot);
+                while (v != null && v.epoch > snapshot) {
+                    v = v.previous;
+                }
+                //Accounts opened after the snapshot have no balance in it
+                if (v == null) {
+                    return;
+                }
+                arian = v.getArian();
+                pres = v.getPres();
+            }
+        } finally {
+            INT.setVolatile(b, off + LATCH, 0);
+        }
+        visitor.account(accNum, arian, pres);
+    }
+
+    /**
+     * Fills in a free record for a new account, in room claimed beforehand.
+     *
+     * @return false if an account with this number already exists.
+     */
+    private boolean insert(int accNum, long arian, long pres, long epoch) {
+        for (int slot = AccountRegistry.spread(accNum) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer b = chunk(slot);
+            int off = offset(slot);
+            if (INT.compareAndSet(b, off + USED, FREE, CLAIMED)) {
+                b.putInt(off + ACC_NUM, accNum);
+                b.putLong(off + EPOCH, epoch);
+                b.putLong(off + ARIAN, arian);
+                b.putLong(off + PRES, pres);
+                INT.setVolatile(b, off + USED, READY);
+                opened(accNum);
+                return true;
+            }
+            if (accNumAt(b, off) == accNum) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Searches for the record of an account.
+     *
+     * @return The slot of the record, or -1 if the account does not exist.
+     */
+    private int find(int accNum) {
+        for (int slot = AccountRegistry.spread(accNum) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer b = chunk(slot);
+            int off = offset(slot);
+            if ((int) INT.getVolatile(b, off + USED) == FREE) {
+                return -1;
+            }
+            if (accNumAt(b, off) == accNum) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Reads the account number of a used record, waiting for an opening still filling it in.
+     */
+    private static int accNumAt(ByteBuffer b, int off) {
+        while ((int) INT.getVolatile(b, off + USED) != READY) {
+            Thread.onSpinWait();
+        }
+        return b.getInt(off + ACC_NUM);
+    }
+
+    /**
+     * Adds a newly opened account to the numbers waiting to be merged into the ordered run, and wakes the
+     * merger once there are enough of them.
+     */
+    private synchronized void opened(int accNum) {
+        if (recentCount == recent.length) {
+            recent = Arrays.copyOf(recent, recentCount * 2);
+        }
+        recent[recentCount++] = accNum;
+        if (mergeDue()) {
+            if (merger == null) {
+                merger = new Thread(this::merge, "store-merger");
+                merger.setDaemon(true);
+                merger.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tells whether enough account numbers wait to be worth a pass over the run, a sixteenth of it or more,
+     * and no reader of an earlier run still reads the buffer the merge would write.
+     */
+    private boolean mergeDue() {
+        return !merging && recentCount >= Math.max(MERGE_MIN, runLength >>> 4) && runReaders[1 - run] == 0;
+    }
+
+    /**
+     * The body of the merger thread: merges the account numbers opened since the last merge into the ordered
+     * run whenever a merge is due. The merged run is written into the other buffer while readers go on reading
+     * the current one, so neither readers nor openings wait for a merge, and openings never make one.
+     */
+    private void merge() {
+        while (true) {
+            int from;
+            int length;
+            int[] opened;
+            synchronized (this) {
+                while (!mergeDue()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                merging = true;
+                from = run;
+                length = runLength;
+                opened = Arrays.copyOf(recent, recentCount);
+            }
+            Arrays.sort(opened);
+            int to = 1 - from;
+            int i = 0;
+            int j = 0;
+            for (int n = 0; i < length || j < opened.length; n++) {
+                int accNum = j == opened.length || (i < length && runAt(from, i) < opened[j])
+                        ? runAt(from, i++) : opened[j++];
+                runs[to][n >>> CHUNK_SHIFT].putInt((n & CHUNK_MASK) * Integer.BYTES, accNum);
+            }
+            synchronized (this) {
+                run = to;
+                runLength = length + opened.length;
+                //Accounts opened during the merge stay for the next one
+                recentCount -= opened.length;
+                System.arraycopy(recent, opened.length, recent, 0, recentCount);
+                merging = false;
+            }
+        }
+    }
+
+    private int runAt(int r, int i) {
+        return runs[r][i >>> CHUNK_SHIFT].getInt((i & CHUNK_MASK) * Integer.BYTES);
+    }
+
+    /**
+     * Takes a lock word, waiting until it is free, see {@link #backOff(int)}.
+     */
+    private static void acquire(ByteBuffer b, int index) {
+        for (int tries = 0; !INT.compareAndSet(b, index, 0, 1); tries++) {
+            backOff(tries);
+        }
+    }
+
+    /**
+     * Waits until a lock word is free without taking it, see {@link #backOff(int)}.
+     */
+    private static void awaitFree(ByteBuffer b, int index) {
+        for (int tries = 0; (int) INT.getVolatile(b, index) != 0; tries++) {
+            backOff(tries);
+        }
+    }
+
+    /**
+     * Waits between two tries at a lock word. Latches and most locks are held only briefly, so a waiter spins
+     * first, then yields the processor a few times, and then parks for longer and longer, so threads waiting
+     * on an account held for long leave the processors to the others.
+     *
+     * @param tries How many tries failed before this one.
+     */
+    private static void backOff(int tries) {
+        if (tries < SPINS) {
+            Thread.onSpinWait();
+        } else if (tries < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            int parks = Math.min(tries - SPINS - YIELDS, 10);
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << parks));
+        }
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot >>> CHUNK_SHIFT];
+    }
+
+    private static int offset(int slot) {
+        return (slot & CHUNK_MASK) * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * This class is a conversion rate together with its version, the number of changes made to the rate
+ * before it. Rates are immutable and published through a single volatile field, so one read gives a rate
+ * and its version which always belong together, and reading takes no lock.
+ * <p>
+ * Every rate remembers the epoch it was set in and the rate it replaced, so a snapshot can find the rate
+ * in force when it was taken. Rates older than every snapshot still being read are forgotten.
+ */
+final class Rate {
+    private final long value;
+    private final long version;
+    private final long epoch;
+    //The rate this one replaced, or null once no snapshot needs it
+    private volatile Rate previous;
+
+    /**
+     * Creates the first rate of a session.
+     *
+     * @param value How many units of pres equal one unit of arian, as a fixed-point value.
+     */
+    Rate(long value) {
+        this(value, 0);
+    }
+
+    /**
+     * Creates the first rate of a session carrying on from a rate of an earlier one, e.g. one restored
+     * from a checkpoint, so versions keep growing across restarts.
+     *
+     * @param value   How many units of pres equal one unit of arian, as a fixed-point value.
+     * @param version The version of the rate.
+     */
+    Rate(long value, long version) {
+        this(value, version, 0, null);
+    }
+
+    private Rate(long value, long version, long epoch, Rate previous) {
+        this.value = value;
+        this.version = version;
+        this.epoch = epoch;
+        this.previous = previous;
+    }
+
+    /**
+     * Creates the rate replacing this one.
+     *
+     * @param value  The new rate, as a fixed-point value.
+     * @param epoch  The epoch the change entered the gate in.
+     * @param oldest The oldest snapshot epoch still being read.
+     * @return The new rate, with the next version.
+     */
+    Rate next(long value, long epoch, long oldest) {
+        Rate next = new Rate(value, version + 1, epoch, this);
+        //Everything behind the newest rate old enough for every snapshot can be dropped
+        for (Rate r = next; r != null; r = r.previous) {
+            if (r.epoch <= oldest) {
+                r.previous = null;
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Finds the rate a snapshot sees.
+     *
+     * @param snapshot The epoch of the snapshot.
+     * @return The latest rate set in that epoch or before it.
+     */
+    Rate at(long snapshot) {
+        Rate r = this;
+        while (r.epoch > snapshot && r.previous != null) {
+            r = r.previous;
+        }
+        return r;
+    }
+
+    /**
+     * Retrieves the rate.
+     *
+     * @return How many units of pres equal one unit of arian, as a fixed-point value, see {@link Fixed}.
+     */
+    long getValue() {
+        return value;
+    }
+
+    /**
+     * Retrieves the version of the rate.
+     *
+     * @return The number of changes made to the rate before this one.
+     */
+    long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps standby servers up to date with a primary. A standby connects to the primary's
+ * replication port and first receives a checkpoint of every account, taken from a snapshot without
+ * stopping traffic. After it, the primary streams the records of its transaction log in the order they
+ * were appended, in the same encoding as the log file.
+ * <p>
+ * Records are sent in frames holding whatever the log flushed at once, each starting with the position
+ * of its first record in the log, so the standby notices a missing frame. The primary never waits for
+ * a standby: frames are queued per standby, and a standby falling too far behind is disconnected.
+ */
+class Replication {
+    //A standby whose unsent frames take more bytes than this is disconnected
+    private static final long MAX_QUEUED = 64L << 20;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Provides the checkpoint a standby starts from.
+     */
+    interface Source {
+        /**
+         * Sends a checkpoint of every account and the rate, see {@link Checkpoint#send}.
+         *
+         * @param out         Where to send it.
+         * @param logPosition The position in the log before which every change must be in the checkpoint.
+         */
+        void send(DataOutputStream out, long logPosition) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Applies what a standby receives from the primary.
+     */
+    interface Target {
+        /**
+         * Restores the checkpoint the standby starts from.
+         *
+         * @param in The connection to the primary.
+         * @return The checkpoint.
+         */
+        Checkpoint receive(DataInputStream in) throws IOException;
+
+        /**
+         * Applies records of the primary's log, all of them together.
+         *
+         * @param records   Whole records, in the encoding of the log.
+         * @param skipEpoch Records stamped with this epoch or an earlier one are in the checkpoint.
+         */
+        void apply(byte[] records, long skipEpoch) throws IOException;
+    }
+
+    /**
+     * Accepts standby servers in a background thread and streams the log to each of them.
+     *
+     * @param port   The replication port.
+     * @param log    The log whose records are streamed.
+     * @param source Provides the checkpoint every standby starts from.
+     */
+    static void serve(int port, TransactionLog log, Source source) throws IOException {
+        ServerSocket listener = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = listener.accept();
+                    Thread sender = new Thread(new Feed(socket, log, source), "replication-" + socket.getPort());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    EventLog.log(EventLog.Level.ERROR, "Error: replication port ", e);
+                    return;
+                }
+            }
+        }, "replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Connects to a primary and applies its changes in a background thread until the connection ends
+     * or {@link Follower#stop()} is called.
+     *
+     * @param host   The primary's host.
+     * @param port   The primary's replication port.
+     * @param target Applies the changes.
+     * @return The running follower.
+     */
+    static Follower follow(String host, int port, Target target) throws IOException {
+        Follower follower = new Follower(new Socket(host, port), target);
+        follower.thread.start();
+        return follower;
+    }
+
+    /**
+     * The connection of a standby to its primary.
+     */
+    static final class Follower implements Runnable {
+        private final Socket socket;
+        private final Target target;
+        private final Thread thread;
+        private volatile boolean stopped;
+
+        private Follower(Socket socket, Target target) {
+            this.socket = socket;
+            this.target = target;
+            thread = new Thread(this, "replication");
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),
+                        BUFFER_SIZE));
+                Checkpoint checkpoint = target.receive(in);
+                long expected = checkpoint.getLogPosition();
+                while (true) {
+                    long start = in.readLong();
+                    byte[] records = new byte[in.readInt()];
+                    in.readFully(records);
+                    if (start != expected) {
+                        throw new IOException("Expected records from position " + expected + ", got " + start);
+                    }
+                    target.apply(records, checkpoint.getEpoch());
+                    expected += records.length;
+                }
+            } catch (IOException | IllegalStateException e) {
+                if (!stopped) {
+                    EventLog.log(EventLog.Level.ERROR, "Error: replication from the primary ", e);
+                }
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        /**
+         * Disconnects from the primary and waits until the last changes received are applied.
+         */
+        void stop() throws InterruptedException {
+            stopped = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+            thread.join();
+        }
+    }
+
+    /**
+     * Streams the log to one standby.
+     */
+    private static final class Feed implements Runnable, TransactionLog.Follower {
+        //Queued when the feed is closed, so its thread stops waiting for frames
+        private static final Frame END = new Frame(0, new byte[0]);
+
+        private final Socket socket;
+        private final TransactionLog log;
+        private final Source source;
+        //Frames not sent yet, and the bytes they take
+        private final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        private final AtomicLong queued = new AtomicLong();
+        private volatile boolean closed;
+
+        Feed(Socket socket, TransactionLog log, Source source) {
+            this.socket = socket;
+            this.log = log;
+            this.source = source;
+        }
+
+        @Override
+        public void records(long start, ByteBuffer records) {
+            if (closed) {
+                return;
+            }
+            byte[] bytes = new byte[records.remaining()];
+            records.get(bytes);
+            if (queued.addAndGet(bytes.length) > MAX_QUEUED) {
+                EventLog.log(EventLog.Level.ERROR, "Error: standby too far behind, disconnecting ", socket);
+                close();
+                return;
+            }
+            frames.add(new Frame(start, bytes));
+        }
+
+        @Override
+        public void run() {
+            EventLog.log(EventLog.Level.INFO, "Standby connected: ", socket);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                        BUFFER_SIZE));
+                //Following before the snapshot is taken, so every change is either in the checkpoint or streamed
+                long from = log.follow(this);
+                source.send(out, from);
+                out.flush();
+                while (!closed) {
+                    Frame frame = frames.take();
+                    //Everything queued meanwhile goes out with it before the stream is flushed
+                    do {
+                        if (frame == END) {
+                            return;
+                        }
+                        queued.addAndGet(-frame.records.length);
+                        //Records appended before the standby started following are in its checkpoint
+                        long skip = Math.max(0, from - frame.start);
+                        if (skip < frame.records.length) {
+                            out.writeLong(frame.start + skip);
+                            out.writeInt(frame.records.length - (int) skip);
+                            out.write(frame.records, (int) skip, frame.records.length - (int) skip);
+                        }
+                        frame = frames.poll();
+                    } while (frame != null);
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                if (!closed) {
+                    EventLog.log(EventLog.Level.ERROR, "Error: replication to " + socket + " " + e);
+                }
+            } finally {
+                log.unfollow(this);
+                close();
+                EventLog.log(EventLog.Level.INFO, "Standby disconnected: ", socket);
+            }
+        }
+
+        private void close() {
+            closed = true;
+            frames.add(END);
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Records of the log sent together.
+     */
+    private static final class Frame {
+        private final long start;
+        private final byte[] records;
+
+        Frame(long start, byte[] records) {
+            this.start = start;
+            this.records = records;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * This enum lists every response the server gives to a command. Each response has the text sent to
+ * clients using the text protocol and the status code sent to clients using the binary protocol, so
+ * the commands decide what to answer without knowing how the answer is encoded.
+ * <p>
+ * Codes below 32 mean the command was performed; codes from 32 on mean it was refused.
+ */
+enum Reply {
+    RATE_CHANGED(0, "Rate changed"),
+    OPENED(1, "Opened account ", ""),
+    TRANSFERRED(2, "Transferred"),
+    CONVERTED(3, "Converted at rate "),
+    BATCH_APPLIED(4, "Batch applied (", " legs)"),
+    //A line of State, one per account
+    ACCOUNT(5, ""),
+    //The last line of State
+    STATE(6, "Rate "),
+    STATS(7, ""),
+    CLOSED(8, "Have a nice day!"),
+    PROMOTED(9, "Promoted to primary"),
+    UNSUPPORTED(32, "Unsupported command or missing/unnecessary argument(s)!"),
+    STANDBY(33, "This server is a standby. Please send changes to the primary!"),
+    ALREADY_PRIMARY(34, "This server is already the primary!"),
+    RATE_NOT_A_NUMBER(35, "Please enter a float value!"),
+    NEGATIVE_RATE(36, "Rate cannot be a negative number!"),
+    ZERO_RATE(37, "Rate cannot be set to 0. Please retry!"),
+    NO_ACCOUNT_NUMBER(38, "Please provide an integer value for the account number!"),
+    DUPLICATE_ACCOUNT(39, "Cannot create a duplicate account! (", ")"),
+    NO_SENDER(40, "First account number should be an integer!"),
+    NO_RECEIVER(41, "Second account number should be an integer!"),
+    SAME_ACCOUNT(42, "You cannot transfer to the same account!"),
+    UNKNOWN_ACCOUNTS(43, "One or both of the accounts does not exist in the system!"),
+    NO_TRANSFER_AMOUNT(44, "Please provide an amount of money to transfer!"),
+    NOT_A_NUMBER(45, "Values should be floating-point numbers!"),
+    //A response to amounts which are not written in the (...) format used in transfer and convert
+    WRONG_FORMAT(46, "Wrong Format of values. The Correct Format is:" +
+            " (number,number). Example: (3,4) or (8.567,9.1)"),
+    NO_CONVERT_ACCOUNT(47, "Account number should be an integer!"),
+    UNKNOWN_ACCOUNT(48, "Account is not found on the server!"),
+    NO_CONVERT_AMOUNT(49, "Please provide an amount of money to convert!"),
+    NOT_BATCHABLE(50, "Only Transfer and Convert can be batched!"),
+    EMPTY_BATCH(51, "Please provide the transfers and conversions of the batch!"),
+    BATCH_REFUSED(52, "Batch refused, leg "),
+    //Sent instead of running a command, or instead of serving a connection, when the server takes no more
+    BUSY(53, "Server busy. Please retry later!"),
+    //Sent before a connection which has been silent for too long is closed
+    IDLE(54, "Closing the connection after too long without commands!"),
+    //Sent for an amount or a rate too large to be kept exactly, or a change taking a balance beyond that
+    OUT_OF_RANGE(55, "Amount out of range! No amount or balance can go beyond 9223372036854.775807."),
+    //Sent for an opening when the store holds as many accounts as it was sized for
+    STORE_FULL(56, "Cannot open more accounts! The server is full."),
+    //Sent instead of running a line longer than any command, which is dropped
+    LINE_TOO_LONG(57, "Line too long! A command is at most 65536 bytes long.");
+
+    private final byte code;
+    private final String text;
+    private final String suffix;
+
+    Reply(int code, String text) {
+        this(code, text, null);
+    }
+
+    Reply(int code, String text, String suffix) {
+        this.code = (byte) code;
+        this.text = text;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Retrieves the status code of the binary protocol.
+     *
+     * @return The code, from 0 to 127.
+     */
+    byte getCode() {
+        return code;
+    }
+
+    /**
+     * Retrieves the text of the text protocol. Responses carrying a value start with this text.
+     *
+     * @return The text.
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Retrieves what follows the value of a response carrying one, such as the account number of OPENED.
+     *
+     * @return The text after the value, or null if the response carries no single value.
+     */
+    String getSuffix() {
+        return suffix;
+    }
+}
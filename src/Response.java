@@ -0,0 +1,68 @@
+import java.io.IOException;
+
+/**
+ * This interface describes where the commands write their responses. The commands only pick a
+ * {@link Reply} and its values; the text protocol turns it into a line and the binary protocol into
+ * a frame. Rates and balances are fixed-point values, see {@link Fixed}. A response belongs to a single
+ * connection and must not be shared between threads.
+ */
+interface Response {
+    /**
+     * Sends a response carrying no values.
+     *
+     * @param reply The response.
+     */
+    void send(Reply reply) throws IOException;
+
+    /**
+     * Sends a response carrying a single number: OPENED, DUPLICATE_ACCOUNT or BATCH_APPLIED.
+     *
+     * @param reply The response.
+     * @param value The account number, or the number of legs.
+     */
+    void send(Reply reply, int value) throws IOException;
+
+    /**
+     * Sends the reason a leg of a batch was refused.
+     *
+     * @param leg     The number of the leg, from 1.
+     * @param refusal Why the leg was refused.
+     */
+    void refuseLeg(int leg, Reply refusal) throws IOException;
+
+    /**
+     * Confirms a conversion.
+     *
+     * @param rate    The rate used.
+     * @param version The version of the rate.
+     */
+    void converted(long rate, long version) throws IOException;
+
+    /**
+     * Sends one account of State.
+     *
+     * @param accNum The account number.
+     * @param arian  The balance of arian.
+     * @param pres   The balance of pres.
+     */
+    void account(int accNum, long arian, long pres) throws IOException;
+
+    /**
+     * Ends State.
+     *
+     * @param rate The rate matching the accounts sent.
+     */
+    void state(long rate) throws IOException;
+
+    /**
+     * Sends what the server has done so far.
+     *
+     * @param metrics The metrics of the server.
+     */
+    void stats(Metrics metrics) throws IOException;
+
+    /**
+     * Sends every response written so far to the client.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded queue which many threads hand work to a single consumer thread through, with a
+ * compare-and-set and no lock. The ring only hands out positions and tells whose turn each slot is; its
+ * users keep what a slot carries in plain arrays of their own, indexed by {@link #slot(long)}, which
+ * publishing a position makes visible to the consumer.
+ * <p>
+ * A producer {@link #claim()}s a position, fills in its slot and {@link #publish(long)}es it. The consumer
+ * reads the slot of the {@link #head()} once it is {@link #ready()}, then {@link #advance()}s to free it.
+ */
+final class Ring {
+    private final int mask;
+    /*
+     * Every slot carries a sequence number telling whose turn it is: a slot with sequence p is free for the
+     * producer claiming position p, one with sequence p + 1 holds what that producer put there until the
+     * consumer has taken it and moves the sequence on to p + capacity.
+     */
+    private final AtomicLongArray sequences;
+    //The next position claimed by a producer
+    private final AtomicLong tail = new AtomicLong();
+    //The next position taken by the consumer; read and written only by the consumer thread
+    private long head;
+    //The thread waiting in await(), set before it parks
+    private volatile Thread consumer;
+    //Set by the consumer before it parks, so only positions published while it sleeps wake it up
+    private volatile boolean sleeping;
+
+    /**
+     * Creates an empty ring.
+     *
+     * @param capacity The number of slots, a power of two.
+     */
+    Ring(int capacity) {
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Claims the next position for a producer.
+     *
+     * @return The position, or -1 if every slot still holds something the consumer has not taken.
+     */
+    long claim() {
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get(slot(position)) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                //The consumer has not taken what was put in this slot a whole ring ago yet
+                return -1;
+            }
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Finds the slot a position maps to.
+     *
+     * @param position A position.
+     * @return The index of the slot.
+     */
+    int slot(long position) {
+        return (int) position & mask;
+    }
+
+    /**
+     * Hands a claimed position to the consumer, with everything written to its slot before, and wakes the
+     * consumer if it is waiting.
+     *
+     * @param position A position returned by {@link #claim()}.
+     */
+    void publish(long position) {
+        sequences.set(slot(position), position + 1);
+        if (sleeping) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Checks whether the position at the head has been published. Called by the consumer only.
+     *
+     * @return true if the slot of the head can be read.
+     */
+    boolean ready() {
+        return sequences.get(slot(head)) == head + 1;
+    }
+
+    /**
+     * Retrieves the next position for the consumer to take. Called by the consumer only.
+     *
+     * @return The position at the head.
+     */
+    long head() {
+        return head;
+    }
+
+    /**
+     * Frees the slot of the head for producers and moves on to the next position. Called by the consumer
+     * only, once it is done with the slot.
+     */
+    void advance() {
+        sequences.set(slot(head), head + mask + 1);
+        head++;
+    }
+
+    /**
+     * Parks the consumer until a position is published, unless one already is. Called by the consumer only.
+     *
+     * @param nanos The longest time to wait, or 0 to wait without a limit.
+     */
+    void await(long nanos) {
+        consumer = Thread.currentThread();
+        sleeping = true;
+        //A position published before the flag was seen would otherwise wait for the next one
+        if (!ready()) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        sleeping = false;
+    }
+}
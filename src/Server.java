@@ -1,10 +1,24 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This program hosts a server. The aim is to allow multiple users to connect to it at the same time
@@ -17,52 +31,376 @@ import java.util.concurrent.Executors;
 
 
 public class Server {
-    //A regular expression to cover the correct input format (...) used in transfer and convert
-    private static final String REGEX_VALUES = "\\(\\S+\\)";
-    //Regular expressions to cover server commands and prevent bugs during the input
-    private static final String REGEX_RATE = "(?i)[r][a][t][e][ ](.*?)";
-    private static final String REGEX_OPEN = "(?i)[o][p][e][n][ ](.*?)";
-    private static final String REGEX_STATE = "(?i)[s][t][a][t][e]";
-    private static final String REGEX_TRANSFER = "(?i)[t][r][a][n][s][f][e][r][ ](.*?)";
-    private static final String REGEX_CONVERT = "(?i)[c][o][n][v][e][r][t][ ](.*?)";
-    private static final String REGEX_CLOSE = "(?i)[c][l][o][s][e]";
-    //A set of monitors used to play a role in providing condition synchronisation and mutual exclusion
-    private static final Object OPEN_MONITOR = new Object();
-    private static final Object ACCOUNTS_MONITOR = new Object();
+    //The port brokers connect to, 4242 unless -Dserver.port is given
+    private static final int PORT = Integer.getInteger("server.port", 4242);
+    /*
+     * How connections are served: "threads" gives every connection its own pooled thread, "virtual" its own
+     * virtual thread, "nio" serves all of them from one selector thread and a small pool of workers.
+     */
+    private static final String ENGINE = System.getProperty("server.engine", "threads");
+    //Held while the rate is changed, so changes are published and logged in the same order
     private static final Object RATE_MONITOR = new Object();
-    //An array list of all accounts created during the session
-    private static ArrayList<Account> accList = new ArrayList<>();
-    //Default value: 10
-    private static float rate = 10;
     /*
-     * I use these two locks below and a lock for each account to allow concurrent access to different commands
-     * instead of blocking the whole system while the operation is being processed. Several monitors are used
-     * for the same reason.
+     * When enabled, Convert updates the account without taking its lock. Transfer and Batch still lock the
+     * accounts they touch, and Convert waits for them rather than change a balance they have checked.
+     * Enabled with -Dserver.lockFree=true. Set before the accounts, which are created knowing it.
+     */
+    private static final boolean LOCK_FREE = Boolean.getBoolean("server.lockFree");
+    /*
+     * All accounts created during the session, indexed by account number. Kept as Account objects on the heap,
+     * or as records in direct memory with -Dserver.store=offheap.
+     */
+    private static final AccountStore accounts = newAccountStore();
+    /*
+     * Default value: 10. The rate and its version are replaced together by every Rate command, so commands
+     * reading it take no lock and are never held up by Rate commands.
+     */
+    private static volatile Rate rate = new Rate(10 * Fixed.ONE);
+    //Records every change so it can be replayed after a restart; records nothing unless -Dserver.log is given
+    private static TransactionLog log = TransactionLog.NONE;
+    //Every change passes through this gate so checkpoints can read the accounts without stopping traffic
+    private static final EpochGate epochs = new EpochGate();
+    //Counts and times every command; printed by Stats and published over JMX
+    static final Metrics metrics = new Metrics();
+    /*
+     * With -Dserver.shards=N the accounts are split into N shards, each changed only by its own thread,
+     * and changes take no account locks. Null when accounts are locked instead.
      */
-    private static boolean openLock = false;
-    private static boolean rateLock = false;
+    private static Shards shards;
+    //The connection to the primary while this server is a standby started with -Dserver.primary, null otherwise
+    private static volatile Replication.Follower following;
 
 
     /**
      * Runs the server. When a client connects, the server spawns a new thread to do
-     * the servicing.
+     * the servicing, unless the selector based engine is chosen with -Dserver.engine.
      */
     public static void main(String[] args) throws Exception {
         //Setting US locale to force using '.' as a decimal part separator instead of ','
         Locale.setDefault(new Locale("en", "US"));
-        try (ServerSocket listener = new ServerSocket(4242)) {
-            ExecutorService pool = Executors.newFixedThreadPool(1000);
+        metrics.register();
+        String primary = System.getProperty("server.primary");
+        if (primary == null) {
+            recover();
+            startPrimary();
+        } else {
+            //A standby takes its accounts from the primary, and keeps no log or checkpoints until it is promoted
+            String logFile = System.getProperty("server.log");
+            if (logFile != null && Files.exists(Paths.get(logFile)) && Files.size(Paths.get(logFile)) > 0) {
+                throw new IllegalStateException("A standby needs an empty server.log: " + logFile);
+            }
+            //The log of a promoted standby starts after the accounts it received, which only a checkpoint holds
+            if (logFile != null && System.getProperty("server.snapshot") == null) {
+                throw new IllegalStateException("A standby with a server.log needs a server.snapshot too");
+            }
+            int colon = primary.lastIndexOf(':');
+            following = Replication.follow(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)),
+                    new Standby());
+        }
+        int shardCount = Integer.getInteger("server.shards", 0);
+        if (shardCount > 0) {
+            shards = new Shards(shardCount);
+        }
+        switch (ENGINE) {
+            case "nio":
+                new NioEngine(PORT, Integer.getInteger("server.workers",
+                        Runtime.getRuntime().availableProcessors())).run();
+                break;
+            case "virtual":
+                serve(newVirtualThreadExecutor());
+                break;
+            case "threads":
+                serve(newThreadPool(1000));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown server.engine: " + ENGINE);
+        }
+    }
+
+    /**
+     * Restores the accounts and the rate from the checkpoint and the transaction log, if they are configured.
+     */
+    private static void recover() throws IOException {
+        String snapshotFile = System.getProperty("server.snapshot");
+        Checkpoint restored = null;
+        if (snapshotFile != null) {
+            restored = Checkpoint.load(Paths.get(snapshotFile), accounts);
+            if (restored != null) {
+                rate = restored.getRate();
+                epochs.advancePast(restored.getEpoch());
+            }
+        }
+        //Only the changes made after the checkpoint are replayed
+        openLog(restored == null ? 0 : restored.getLogPosition(), restored == null ? 0 : restored.getEpoch());
+    }
+
+    /**
+     * Opens the transaction log given with -Dserver.log and replays it.
+     *
+     * @param start     The position to replay from.
+     * @param skipEpoch Records stamped with this epoch or an earlier one are not replayed.
+     */
+    private static void openLog(long start, long skipEpoch) throws IOException {
+        String logFile = System.getProperty("server.log");
+        if (logFile != null) {
+            TransactionLog.Sync sync = TransactionLog.Sync.valueOf(
+                    System.getProperty("server.logSync", "group").toUpperCase(Locale.ROOT));
+            log = TransactionLog.open(Paths.get(logFile), sync, Long.getLong("server.logWindowMicros", 0),
+                    start, skipEpoch, new Replay(epochs.current()));
+            epochs.advancePast(log.getLastEpoch());
+        }
+    }
+
+    /**
+     * Starts the background work of a primary: periodic checkpoints and the replication port, if they
+     * are configured.
+     */
+    private static void startPrimary() throws IOException {
+        String snapshotFile = System.getProperty("server.snapshot");
+        if (snapshotFile != null) {
+            startCheckpoints(Paths.get(snapshotFile), Long.getLong("server.checkpointSeconds", 60));
+        }
+        Integer replicaPort = Integer.getInteger("server.replicaPort");
+        if (replicaPort != null) {
+            //Standbys are fed from the log, which then only has to exist in memory
+            if (log == TransactionLog.NONE) {
+                log = TransactionLog.inMemory();
+            }
+            Replication.serve(replicaPort, log, Server::sendCheckpoint);
+        }
+    }
+
+    /**
+     * Turns a standby into a primary. It stops following the old primary once the changes already
+     * received are applied, then starts a new log, writes a checkpoint and opens the replication port,
+     * as configured for this server.
+     *
+     * @return false if the server is already a primary.
+     */
+    private static synchronized boolean promote() throws IOException, InterruptedException {
+        if (following == null) {
+            return false;
+        }
+        following.stop();
+        openLog(0, 0);
+        String snapshotFile = System.getProperty("server.snapshot");
+        if (snapshotFile != null) {
+            //The new log holds nothing yet, so a restart needs a checkpoint of the accounts received so far
+            checkpoint(Paths.get(snapshotFile));
+        }
+        startPrimary();
+        following = null;
+        return true;
+    }
+
+    /**
+     * Creates the account store chosen with -Dserver.store.
+     *
+     * @return An empty store.
+     */
+    private static AccountStore newAccountStore() {
+        String store = System.getProperty("server.store", "heap");
+        switch (store) {
+            case "heap":
+                return new HeapAccountStore(LOCK_FREE);
+            case "offheap":
+                return new OffHeapAccountStore(Integer.getInteger("server.storeCapacity", 1 << 20));
+            default:
+                throw new IllegalArgumentException("Unknown server.store: " + store);
+        }
+    }
+
+    /**
+     * Accepts connections forever and hands every one of them to the given executor. A connection the
+     * server cannot take, because too many are open or the executor's queue is full, is refused at once.
+     *
+     * @param pool An executor running one Talk per connection.
+     */
+    private static void serve(ExecutorService pool) throws IOException {
+        try (ServerSocket listener = new ServerSocket(PORT)) {
             while (true) {
-                pool.execute(new Talk(listener.accept()));
+                Socket socket = listener.accept();
+                if (!Admission.connect()) {
+                    Admission.refuse(socket);
+                    continue;
+                }
+                try {
+                    pool.execute(new Talk(socket));
+                } catch (RejectedExecutionException e) {
+                    Admission.disconnect();
+                    Admission.refuse(socket);
+                }
             }
         }
     }
 
     /**
-     * This private class is responsible for concurrent operation of the program.
+     * Creates the pool of the threads engine. Connections wait for a free thread in a queue bounded by
+     * -Dserver.acceptQueue, or in an unbounded one if it is 0.
+     *
+     * @param threads The number of threads.
+     * @return An executor refusing connections once its queue is full.
+     */
+    private static ExecutorService newThreadPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                Admission.ACCEPT_QUEUE > 0 ? new ArrayBlockingQueue<>(Admission.ACCEPT_QUEUE)
+                        : new LinkedBlockingQueue<>());
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for every task. Virtual threads are looked up
+     * reflectively so the server still compiles and runs on JVMs that do not have them.
+     *
+     * @return An executor backed by virtual threads.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The virtual engine requires a JVM with virtual threads", e);
+        }
+    }
+
+    /**
+     * Starts a background thread writing a checkpoint at a fixed interval.
+     *
+     * @param file    The checkpoint file.
+     * @param seconds The time between two checkpoints.
+     */
+    private static void startCheckpoints(Path file, long seconds) {
+        Thread writer = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.SECONDS.sleep(seconds);
+                    checkpoint(file);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    EventLog.log(EventLog.Level.ERROR, "Error: checkpoint ", e);
+                }
+            }
+        }, "checkpoint");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes a checkpoint of every account and the rate. Commands keep running while it is written;
+     * it holds exactly the changes completed before it started.
+     *
+     * @param file The checkpoint file.
+     */
+    static void checkpoint(Path file) throws IOException, InterruptedException {
+        long draining = System.nanoTime();
+        //Read before the snapshot, so every change logged ahead of this position is in the snapshot
+        long position = log.position();
+        long snapshot = epochs.snapshot();
+        metrics.snapshotWait(System.nanoTime() - draining);
+        try {
+            //The rate set by the same changes as the balances
+            Rate r = rate.at(snapshot);
+            //The log must hold every change the checkpoint skips before the checkpoint replaces the old one
+            log.awaitDurable(position);
+            Checkpoint.write(file, snapshot, position, r, accounts);
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Tells the gate a snapshot is no longer read, and lets the store drop the balances kept for it.
+     *
+     * @param snapshot The epoch returned by {@link EpochGate#snapshot()}.
+     */
+    private static void releaseSnapshot(long snapshot) {
+        epochs.release(snapshot);
+        accounts.released(epochs::oldestSnapshot);
+    }
+
+    /**
+     * Sends a checkpoint to a standby, see {@link Replication.Source}.
+     */
+    private static void sendCheckpoint(DataOutputStream out, long logPosition)
+            throws IOException, InterruptedException {
+        long snapshot = epochs.snapshot();
+        try {
+            Checkpoint.send(out, snapshot, logPosition, rate.at(snapshot), accounts);
+        } finally {
+            releaseSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * Applies the changes read back from the transaction log when the server starts, or received
+     * from the primary by a standby.
+     */
+    private static final class Replay implements TransactionLog.Handler {
+        //The epoch changes are stamped with
+        private long epoch;
+
+        Replay(long epoch) {
+            this.epoch = epoch;
+        }
+
+        @Override
+        public void open(int accNum) {
+            //The primary refuses openings beyond the capacity, so only a smaller store can get here. Skipping the
+            //account would leave the changes to it that follow with nowhere to go
+            if (!accounts.claim()) {
+                throw new IllegalStateException("The account store is full, no room to open account " + accNum);
+            }
+            accounts.open(accNum, epoch);
+        }
+
+        @Override
+        public void rate(long rate) {
+            Server.rate = Server.rate.next(rate, epoch, epochs.oldestSnapshot());
+        }
+
+        @Override
+        public void convert(int accNum, long arian, long pres, long rate) {
+            accounts.add(accNum, Account.convertedArian(arian, pres, rate), Account.convertedPres(arian, pres, rate),
+                    epoch, epochs.oldestSnapshot());
+        }
+
+        @Override
+        public void transfer(int accFrom, int accTo, long arian, long pres) {
+            accounts.add(accFrom, -arian, -pres, epoch, epochs.oldestSnapshot());
+            accounts.add(accTo, arian, pres, epoch, epochs.oldestSnapshot());
+        }
+    }
+
+    /**
+     * Keeps the accounts of a standby up to date with the primary.
+     */
+    private static final class Standby implements Replication.Target {
+        private final Replay replay = new Replay(0);
+
+        @Override
+        public Checkpoint receive(DataInputStream in) throws IOException {
+            Checkpoint checkpoint = Checkpoint.receive(in, accounts);
+            rate = checkpoint.getRate();
+            return checkpoint;
+        }
+
+        @Override
+        public void apply(byte[] records, long skipEpoch) throws IOException {
+            //All the records enter the gate together, so State never sees part of what the primary flushed at once
+            long e = epochs.enter();
+            try {
+                replay.epoch = e;
+                TransactionLog.replay(records, skipEpoch, replay);
+            } finally {
+                epochs.exit(e);
+            }
+        }
+    }
+
+    /**
+     * This class is responsible for concurrent operation of the program.
      * The code describes the behaviour of the server as well as robustness of all possible operations.
      */
-    private static class Talk implements Runnable {
+    static class Talk implements Runnable {
         private Socket socket;
 
         Talk(Socket socket) {
@@ -70,299 +408,680 @@ public class Server {
         }
 
         /**
-         * Searches for the account in the account list.
+         * Checks the validness of an input and transfers money if no violations were found.
          *
-         * @param accNum A unique identity number of the account.
-         * @return true if the account is found, false otherwise.
+         * @param command The parsed line received from the client.
+         * @param out     Where the response to the client is written.
+         * @return true if the change was made, false if the command was refused.
          */
-        private static Boolean findAcc(int accNum) {
-            boolean flag = false;
-            for (Account a : accList) {
-                if (accNum == a.getAccNum()) {
-                    flag = true;
+        private static boolean checkValidnessAndTransfer(CommandParser command, Response out)
+                throws IOException, InterruptedException {
+            Reply refusal = refuseTransfer(command);
+            if (refusal != null) {
+                out.send(refusal);
+                return false;
+            }
+            int accFrom = command.getFirstAccount();
+            int accTo = command.getSecondAccount();
+            long arian = command.getArian();
+            long pres = command.getPres();
+            long position;
+            if (shards != null) {
+                //Each account is changed by the thread of its shard, once the transfer is logged
+                long e = epochs.enter();
+                try {
+                    position = shards.run(new Shards.Task() {
+                        @Override
+                        boolean check(int shard) {
+                            //Each shard checks its own side; neither side is applied unless both are in range
+                            return canAdd(accFrom, -arian, -pres, shard) && canAdd(accTo, arian, pres, shard);
+                        }
+
+                        @Override
+                        void apply(int shard) {
+                            if (shards.of(accFrom) == shard) {
+                                accounts.add(accFrom, -arian, -pres, e, epochs.oldestSnapshot());
+                            }
+                            if (shards.of(accTo) == shard) {
+                                accounts.add(accTo, arian, pres, e, epochs.oldestSnapshot());
+                            }
+                        }
+
+                        @Override
+                        long commit() throws IOException {
+                            return log.transfer(e, accFrom, accTo, arian, pres);
+                        }
+                    }, shards.of(accFrom), shards.of(accTo));
+                } catch (ArithmeticException refused) {
+                    out.send(Reply.OUT_OF_RANGE);
+                    return false;
+                } finally {
+                    epochs.exit(e);
+                }
+            } else {
+                //Holding both accounts so locked commands never see only one side of the transfer
+                long waiting = System.nanoTime();
+                accounts.lockBoth(accFrom, accTo);
+                metrics.accountLockWait(System.nanoTime() - waiting);
+                //Checked while both accounts are held, so a transfer is refused as a whole rather than half made
+                if (!canTransfer(accFrom, accTo, arian, pres)) {
+                    accounts.unlockBoth(accFrom, accTo);
+                    out.send(Reply.OUT_OF_RANGE);
+                    return false;
+                }
+                long e = epochs.enter();
+                try {
+                    //Logged before it is applied, so a change the log failed to take is not made either
+                    position = log.transfer(e, accFrom, accTo, arian, pres);
+                    accounts.add(accFrom, -arian, -pres, e, epochs.oldestSnapshot());
+                    accounts.add(accTo, arian, pres, e, epochs.oldestSnapshot());
+                } finally {
+                    epochs.exit(e);
+                    accounts.unlockBoth(accFrom, accTo);
                 }
             }
-            return flag;
+            log.await(position);
+            out.send(Reply.TRANSFERRED);
+            return true;
         }
 
         /**
-         * Searches for an array list's index of the account with
-         * the specified account number.
+         * Checks whether a transfer keeps both balances in range.
          *
-         * @param accNum A unique identity number of the account.
-         * @return An index of the account in the array list.
+         * @return false if the balance of either account would go out of range.
          */
-        private static int getAccIndex(int accNum) {
-            int index = -1; //Error Value
-            for (int i = 0; i < accList.size(); i++) {
-                if (accNum == accList.get(i).getAccNum()) {
-                    index = i;
-                }
-            }
-            return index;
+        private static boolean canTransfer(int accFrom, int accTo, long arian, long pres) {
+            return accounts.canAdd(accFrom, -arian, -pres) && accounts.canAdd(accTo, arian, pres);
         }
 
         /**
-         * Checks the validness of an input and transfers money if no violations were found.
+         * Checks the validness of a transfer without performing it.
          *
-         * @param line A line to be read from the console.
-         * @param out  An interface to display text output to a user in the client.
+         * @param command The parsed Transfer.
+         * @return The response explaining why the transfer is refused, or null if it can be performed.
          */
-        private static void checkValidnessAndTransfer(Scanner line, PrintWriter out)
-                throws InterruptedException {
-            //The following checks the legitness of input and performs a transfer of funds
-            int accFrom;
-            int accTo;
-            line.next();
+        private static Reply refuseTransfer(CommandParser command) {
             //The following if statements are to make sure sensible data is provided during the input
-            if (line.hasNextInt()) {
-                accFrom = line.nextInt();
-                if (line.hasNextInt()) {
-                    accTo = line.nextInt();
+            if (command.hasFirstAccount()) {
+                int accFrom = command.getFirstAccount();
+                if (command.hasSecondAccount()) {
+                    int accTo = command.getSecondAccount();
                     //Sender and receiver must be different accounts
                     if (accFrom != accTo) {
                         //Both accounts should exist to perform a transaction
-                        if (findAcc(accFrom) && findAcc(accTo)) {
-                            try {
-                                String values = line.next();
-                                //If the values are entered in a "(number,number)" format, then proceed
-                                if (values.matches(REGEX_VALUES)) {
-                                    String numericValues = getNumberString(values);
-                                    //Creating a new Scanner to extract floats from numericValues string
-                                    Scanner valueScan = new Scanner(numericValues);
-                                    try {
-                                        float arian = valueScan.nextFloat();
-                                        float pres = valueScan.nextFloat();
-                                        //Getting the indexes of account for which locks should be acquired
-                                        int indexFrom = getAccIndex(accFrom);
-                                        int indexTo = getAccIndex(accTo);
-                                        valueScan.close();
-                                        float newArianFrom = accList.get(indexFrom).getArian() - arian;
-                                        float newArianTo = accList.get(indexTo).getArian() + arian;
-                                        float newPresFrom = accList.get(indexFrom).getPres() - pres;
-                                        float newPresTo = accList.get(indexTo).getPres() + pres;
-                                        /*
-                                         * Acquiring one account lock at the time. First one is used while funds
-                                         * are being removed from the senders account and second one is used
-                                         * while the funds are being added to a receivers account.
-                                         */
-                                        synchronized (ACCOUNTS_MONITOR) {
-                                            while (accList.get(indexFrom).isLock()) {
-                                                accList.get(indexFrom).wait();
-                                            }
-                                            accList.get(indexFrom).setLock(true);
-                                            accList.get(indexFrom).setArian(newArianFrom);
-                                            accList.get(indexFrom).setPres(newPresFrom);
-                                            accList.get(indexFrom).setLock(false);
-
-                                            while (accList.get(indexTo).isLock()) {
-                                                accList.get(indexTo).wait();
-                                            }
-                                            accList.get(indexTo).setLock(true);
-                                            accList.get(indexTo).setArian(newArianTo);
-                                            accList.get(indexTo).setPres(newPresTo);
-                                            accList.get(indexTo).setLock(false);
-                                            ACCOUNTS_MONITOR.notify();
-                                        }
-                                        out.println("Transferred");
-                                    } catch (NoSuchElementException e) {
-                                        out.println("Values should be floating-point numbers!");
-                                    }
-                                } else {
-                                    out.println("Wrong Format of values. The Correct Format is:" +
-                                            " (number,number). Example: (3,4) or (8.567,9.1)");
-                                }
-                            } catch (NoSuchElementException e) {
-                                out.println("Please provide an amount of money to transfer!");
+                        if (accounts.exists(accFrom) && accounts.exists(accTo)) {
+                            switch (command.getAmount()) {
+                                case OK:
+                                    return null;
+                                case NOT_A_NUMBER:
+                                    return Reply.NOT_A_NUMBER;
+                                case WRONG_FORMAT:
+                                    return Reply.WRONG_FORMAT;
+                                case OUT_OF_RANGE:
+                                    return Reply.OUT_OF_RANGE;
+                                default:
+                                    return Reply.NO_TRANSFER_AMOUNT;
                             }
                         } else {
-                            out.println("One or both of the accounts does not exist in the system!");
+                            return Reply.UNKNOWN_ACCOUNTS;
                         }
                     } else {
-                        out.println("You cannot transfer to the same account!");
+                        return Reply.SAME_ACCOUNT;
                     }
                 } else {
-                    out.println("Second account number should be an integer!");
+                    return Reply.NO_RECEIVER;
                 }
             } else {
-                out.println("First account number should be an integer!");
+                return Reply.NO_SENDER;
             }
         }
 
         /**
          * Checks the validness of an input and converts money if no violations were found.
          *
-         * @param line A line to be read from the console.
-         * @param out  An interface to display text output to a user in the client.
+         * @param command The parsed line received from the client.
+         * @param out     Where the response to the client is written.
+         * @return true if the change was made, false if the command was refused.
          */
-
-        private static void checkValidnessAndConvert(Scanner line, PrintWriter out) throws InterruptedException {
-            //The following happens when convert command is called
-            line.next();
-            //The following if statements are to make sure sensible data is provided during the input
-            if (line.hasNextInt()) {
-                int accNum = line.nextInt();
-                if (findAcc(accNum)) {
+        private static boolean checkValidnessAndConvert(CommandParser command, Response out)
+                throws IOException, InterruptedException {
+            Reply refusal = refuseConvert(command);
+            if (refusal != null) {
+                out.send(refusal);
+                return false;
+            }
+            int accNum = command.getFirstAccount();
+            long arian = command.getArian();
+            long pres = command.getPres();
+            //The rate and its version in a single read
+            Rate applied = rate;
+            long r = applied.getValue();
+            long position;
+            try {
+                //A conversion changes a single account, which is left as it was if a balance would go out of range
+                long arianChange = Account.convertedArian(arian, pres, r);
+                long presChange = Account.convertedPres(arian, pres, r);
+                if (shards != null) {
+                    //Only the thread of the account's shard changes it, so no lock is needed
+                    long e = epochs.enter();
                     try {
-                        String values = line.next();
-                        //If the values are entered in a "(number,number)" format, then proceed
-                        if (values.matches(REGEX_VALUES)) {
-                            String numericValues = getNumberString(values);
-                            //Creating a new Scanner to extract floats from numericValues string
-                            Scanner valueScan = new Scanner(numericValues);
-                            try {
-                                float arian = valueScan.nextFloat();
-                                float pres = valueScan.nextFloat();
-                                valueScan.close();
-                                //Getting the index of an account for which a lock should be acquired
-                                int index = getAccIndex(accNum);
-                                float newArian = accList.get(index).getArian() - arian + pres / rate;
-                                float newPres = accList.get(index).getPres() - pres + arian * rate;
-
-                                //Locking the account while the transaction is in progress.
-                                synchronized (ACCOUNTS_MONITOR) {
-                                    while (accList.get(index).isLock()) {
-                                        ACCOUNTS_MONITOR.wait();
-                                    }
-                                    accList.get(index).setLock(true);
-                                    accList.get(index).setArian(newArian);
-                                    accList.get(index).setPres(newPres);
-                                    accList.get(index).setLock(false);
-                                    ACCOUNTS_MONITOR.notify();
-                                }
-                                out.println("Converted");
-
-                            } catch (NoSuchElementException e) {
-                                out.println("Values should be floating-point numbers!");
+                        position = shards.run(new Shards.Task() {
+                            @Override
+                            boolean check(int shard) {
+                                //Checked before the conversion is logged, as a logged change must be applied
+                                return accounts.canAdd(accNum, arianChange, presChange);
                             }
-                        } else {
-                            out.println("Wrong Format of values. The Correct Format is:" +
-                                    " (number,number). Example: (3,4) or (8.567,9.1)");
-                        }
-                    } catch (NoSuchElementException e) {
-                        out.println("Please provide an amount of money to convert!");
+
+                            @Override
+                            void apply(int shard) {
+                                accounts.add(accNum, arianChange, presChange, e, epochs.oldestSnapshot());
+                            }
+
+                            @Override
+                            long commit() throws IOException {
+                                return log.convert(e, accNum, arian, pres, r);
+                            }
+                        }, shards.of(accNum));
+                    } finally {
+                        epochs.exit(e);
+                    }
+                } else if (LOCK_FREE) {
+                    //Both balances are swapped in a single compare-and-set, no lock needed; the conversion is
+                    //logged between the check and the swap, so the log keeps the account's changes in order
+                    long e = epochs.enter();
+                    try {
+                        position = accounts.addUnlocked(accNum, arianChange, presChange, e, epochs.oldestSnapshot(),
+                                () -> log.convert(e, accNum, arian, pres, r));
+                    } finally {
+                        epochs.exit(e);
                     }
                 } else {
-                    out.println("Account is not found on the server!");
+                    //Locking the account while the transaction is in progress.
+                    long waiting = System.nanoTime();
+                    accounts.lock(accNum);
+                    metrics.accountLockWait(System.nanoTime() - waiting);
+                    //Checked before the conversion is logged, as a logged change must be applied
+                    if (!accounts.canAdd(accNum, arianChange, presChange)) {
+                        accounts.unlock(accNum);
+                        out.send(Reply.OUT_OF_RANGE);
+                        return false;
+                    }
+                    long e = epochs.enter();
+                    try {
+                        position = log.convert(e, accNum, arian, pres, r);
+                        accounts.add(accNum, arianChange, presChange, e, epochs.oldestSnapshot());
+                    } finally {
+                        epochs.exit(e);
+                        accounts.unlock(accNum);
+                    }
+                }
+            } catch (ArithmeticException e) {
+                out.send(Reply.OUT_OF_RANGE);
+                return false;
+            }
+            log.await(position);
+            out.converted(r, applied.getVersion());
+            return true;
+        }
+
+        /**
+         * Checks the validness of a conversion without performing it.
+         *
+         * @param command The parsed Convert.
+         * @return The response explaining why the conversion is refused, or null if it can be performed.
+         */
+        private static Reply refuseConvert(CommandParser command) {
+            //The following if statements are to make sure sensible data is provided during the input
+            if (command.hasFirstAccount()) {
+                int accNum = command.getFirstAccount();
+                if (accounts.exists(accNum)) {
+                    switch (command.getAmount()) {
+                        case OK:
+                            return null;
+                        case NOT_A_NUMBER:
+                            return Reply.NOT_A_NUMBER;
+                        case WRONG_FORMAT:
+                            return Reply.WRONG_FORMAT;
+                        case OUT_OF_RANGE:
+                            return Reply.OUT_OF_RANGE;
+                        default:
+                            return Reply.NO_CONVERT_AMOUNT;
+                    }
+                } else {
+                    return Reply.UNKNOWN_ACCOUNT;
                 }
             } else {
-                out.println("Account number should be an integer!");
+                return Reply.NO_CONVERT_ACCOUNT;
             }
         }
 
         /**
-         * Converts a string of the format "(number,number)" to a string of the format "number number".
-         * It is needed  to successfully extract floats in the future operations.
+         * Checks the validness of every leg of a batch and performs all of them if no violations were found.
+         * The accounts of all legs are locked together and the legs share one epoch and one log entry, so
+         * neither State, a checkpoint nor a restart ever sees some of the legs without the others.
          *
-         * @param values An initial string.
-         * @return A formatted string.
+         * @param command The parsed line received from the client.
+         * @param out     Where the response to the client is written.
+         * @return true if the change was made, false if the batch was refused.
          */
-        private static String getNumberString(String values) {
-            String numericValues = values.replaceAll("\\(", "");
-            numericValues = numericValues.replaceAll("\\)", "");
-            numericValues = numericValues.replaceAll("[,]", " ");
-            return numericValues;
+        private static boolean checkValidnessAndBatch(CommandParser command, Response out)
+                throws IOException, InterruptedException {
+            Batch batch = new Batch();
+            CommandParser leg = new CommandParser();
+            for (CommandParser.Command c = command.nextLeg(leg); c != null; c = command.nextLeg(leg)) {
+                Reply refusal;
+                switch (c) {
+                    case TRANSFER:
+                        refusal = refuseTransfer(leg);
+                        if (refusal == null) {
+                            batch.transfer(leg.getFirstAccount(), leg.getSecondAccount(), leg.getArian(),
+                                    leg.getPres());
+                        }
+                        break;
+                    case CONVERT:
+                        refusal = refuseConvert(leg);
+                        if (refusal == null) {
+                            batch.convert(leg.getFirstAccount(), leg.getArian(), leg.getPres());
+                        }
+                        break;
+                    default:
+                        refusal = Reply.NOT_BATCHABLE;
+                }
+                if (refusal != null) {
+                    out.refuseLeg(batch.size() + 1, refusal);
+                    return false;
+                }
+            }
+            if (batch.size() == 0) {
+                out.send(Reply.EMPTY_BATCH);
+                return false;
+            }
+            int[] involved = batch.accounts();
+            long position;
+            //Every Convert leg uses the same rate
+            long r = rate.getValue();
+            if (shards != null) {
+                //Every shard applies the legs' changes to its own accounts once the batch is logged
+                long e = epochs.enter();
+                try {
+                    position = shards.run(new Shards.Task() {
+                        @Override
+                        boolean check(int shard) {
+                            return fits(batch, r, involved, shard);
+                        }
+
+                        @Override
+                        void apply(int shard) {
+                            applyBatch(batch, r, e, shard);
+                        }
+
+                        @Override
+                        long commit() throws IOException {
+                            return log.batch(e, batch, r);
+                        }
+                    }, involved);
+                } catch (ArithmeticException refused) {
+                    out.send(Reply.OUT_OF_RANGE);
+                    return false;
+                } finally {
+                    epochs.exit(e);
+                }
+            } else {
+                long waiting = System.nanoTime();
+                accounts.lockAll(involved);
+                metrics.accountLockWait(System.nanoTime() - waiting);
+                if (!fits(batch, r, involved, -1)) {
+                    accounts.unlockAll(involved);
+                    out.send(Reply.OUT_OF_RANGE);
+                    return false;
+                }
+                long e = epochs.enter();
+                try {
+                    //Logged before it is applied, so a change the log failed to take is not made either
+                    position = log.batch(e, batch, r);
+                    applyBatch(batch, r, e, -1);
+                } finally {
+                    epochs.exit(e);
+                    accounts.unlockAll(involved);
+                }
+            }
+            log.await(position);
+            out.send(Reply.BATCH_APPLIED, batch.size());
+            return true;
         }
 
         /**
-         * Checks for the valid input and changes the rate to a specified value.
+         * Checks that every balance stays in range while the legs of a batch are applied one after the other,
+         * so a batch which would take one out of range is refused before any leg is applied. The answer only
+         * holds while the accounts are locked, or on the thread of their shard.
          *
-         * @param line A line to be read from the console.
-         * @param out  An interface to display text output to a user in the client.
+         * @param batch    The legs.
+         * @param r        The rate used by Convert legs.
+         * @param involved The accounts the legs touch, see {@link Batch#accounts()}.
+         * @param shard    Only balances of accounts of this shard are checked, or of every account if it is -1.
+         * @return false if a balance would go out of range.
          */
-        private static void changeRate(Scanner line, PrintWriter out) throws InterruptedException {
-            //The following sets the rate to a specified value
-            line.next();
-            float r = rate; //Temporary rate
+        private static boolean fits(Batch batch, long r, int[] involved, int shard) {
+            //What the legs applied so far add to each account
+            long[] arians = new long[involved.length];
+            long[] preses = new long[involved.length];
             try {
-                r = line.nextFloat();
-            } catch (InputMismatchException e) {
-                out.println("Please enter a float value!");
+                for (int i = 0; i < batch.size(); i++) {
+                    long arian = batch.getArian(i);
+                    long pres = batch.getPres(i);
+                    int from = Arrays.binarySearch(involved, batch.getFirstAccount(i));
+                    if (batch.isConvert(i)) {
+                        arians[from] = Math.addExact(arians[from], Account.convertedArian(arian, pres, r));
+                        preses[from] = Math.addExact(preses[from], Account.convertedPres(arian, pres, r));
+                    } else {
+                        int to = Arrays.binarySearch(involved, batch.getSecondAccount(i));
+                        arians[from] = Math.subtractExact(arians[from], arian);
+                        preses[from] = Math.subtractExact(preses[from], pres);
+                        arians[to] = Math.addExact(arians[to], arian);
+                        preses[to] = Math.addExact(preses[to], pres);
+                        if (!canAdd(involved[to], arians[to], preses[to], shard)) {
+                            return false;
+                        }
+                    }
+                    if (!canAdd(involved[from], arians[from], preses[from], shard)) {
+                        return false;
+                    }
+                }
+            } catch (ArithmeticException e) {
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Checks whether amounts can be added to an account, if it is one the caller checks.
+         *
+         * @param shard The shard whose thread checks, or -1 if the caller checks every account.
+         * @return false if a balance of an account of the shard would go out of range.
+         */
+        private static boolean canAdd(int accNum, long arian, long pres, int shard) {
+            return shard >= 0 && shards.of(accNum) != shard || accounts.canAdd(accNum, arian, pres);
+        }
+
+        /**
+         * Applies the legs of a batch to the accounts.
+         *
+         * @param batch The legs.
+         * @param r     The rate used by Convert legs.
+         * @param e     The epoch the batch entered the gate in.
+         * @param shard Only accounts of this shard are changed, or every account if it is -1.
+         */
+        private static void applyBatch(Batch batch, long r, long e, int shard) {
+            for (int i = 0; i < batch.size(); i++) {
+                int accFrom = batch.getFirstAccount(i);
+                int accTo = batch.getSecondAccount(i);
+                long arian = batch.getArian(i);
+                long pres = batch.getPres(i);
+                if (batch.isConvert(i)) {
+                    if (shard < 0 || shards.of(accFrom) == shard) {
+                        accounts.add(accFrom, Account.convertedArian(arian, pres, r),
+                                Account.convertedPres(arian, pres, r), e, epochs.oldestSnapshot());
+                    }
+                } else {
+                    if (shard < 0 || shards.of(accFrom) == shard) {
+                        accounts.add(accFrom, -arian, -pres, e, epochs.oldestSnapshot());
+                    }
+                    if (shard < 0 || shards.of(accTo) == shard) {
+                        accounts.add(accTo, arian, pres, e, epochs.oldestSnapshot());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Checks for the valid input and changes the rate to a specified value. A rate equal to the current one
+         * is answered like any other but is not logged and gets no new version.
+         *
+         * @param command The parsed line received from the client.
+         * @param out     Where the response to the client is written.
+         * @return true if the rate was set, also to the value it had, false if the command was refused.
+         */
+        private static boolean changeRate(CommandParser command, Response out)
+                throws IOException, InterruptedException {
+            //The following sets the rate to a specified value
+            long r = 0;
+            //Whether the command gave a rate, rather than the rate being set again as it was
+            boolean given = false;
+            if (command.getAmount() == CommandParser.Amount.MISSING) {
+                //A missing rate has always ended the connection
+                throw new NoSuchElementException();
+            } else if (command.getAmount() == CommandParser.Amount.NOT_A_NUMBER) {
+                //Clients have always been told the rate changed after this, with the rate set again as it was
+                out.send(Reply.RATE_NOT_A_NUMBER);
+            } else if (command.getAmount() == CommandParser.Amount.OUT_OF_RANGE) {
+                out.send(Reply.OUT_OF_RANGE);
+                return false;
+            } else {
+                r = command.getRate();
+                given = true;
             }
-            if (r < 0) {
-                out.println("Rate cannot be a negative number!");
-            } else if (r == 0) {
-                out.println("Rate cannot be set to 0. Please retry!");
+            if (given && r < 0) {
+                out.send(Reply.NEGATIVE_RATE);
+            } else if (given && r == 0) {
+                out.send(Reply.ZERO_RATE);
             } else {
-                //Acquiring a lock  to prevent other processes using rate.
+                long position = 0;
+                boolean changed = false;
+                long waiting = System.nanoTime();
+                //Only other Rate commands wait here; commands reading the rate never do
                 synchronized (RATE_MONITOR) {
-                    while (rateLock) {
-                        RATE_MONITOR.wait();
+                    metrics.rateLockWait(System.nanoTime() - waiting);
+                    //Compared under the monitor, so a rate set meanwhile by another command is never undone
+                    if (given && r != rate.getValue()) {
+                        long e = epochs.enter();
+                        try {
+                            position = log.rate(e, r);
+                            rate = rate.next(r, e, epochs.oldestSnapshot());
+                        } finally {
+                            epochs.exit(e);
+                        }
+                        changed = true;
                     }
-                    rateLock = true;
-                    rate = r;
-                    rateLock = false;
-                    RATE_MONITOR.notify();
                 }
-                out.println("Rate changed");
+                if (changed) {
+                    log.await(position);
+                }
+                out.send(Reply.RATE_CHANGED);
+                //A rate set to the value it had still counts as run, one which was not a number as refused
+                return given;
             }
+            return false;
         }
 
         /**
          * Checks the validness of an input and creates a new account if no violations were found.
          *
-         * @param line A line to be read from the console.
-         * @param out  An interface to display text output to a user in the client.
+         * @param command The parsed line received from the client.
+         * @param out     Where the response to the client is written.
+         * @return true if the change was made, false if the command was refused.
          */
-        private static void openAccount(Scanner line, PrintWriter out) throws InterruptedException {
-            //The following creates a new account with the specified account number
-            int accNumber;
-            line.next();
-            Account a;
+        private static boolean openAccount(CommandParser command, Response out)
+                throws IOException, InterruptedException {
             //Adding protection from non-integer values for acc number
-            if (line.hasNextInt()) {
-                accNumber = line.nextInt();
-                a = new Account(accNumber);
-                //Preventing clashes during the creation of the account using a locking mechanism
-                synchronized (OPEN_MONITOR) {
-                    while (openLock) {
-                        OPEN_MONITOR.wait();
-                    }
-                    openLock = true;
-                    //Do not allow the same account to be created more than once
-                    if (findAcc(accNumber)) {
-                        out.println("Cannot create a duplicate account!" + " (" + accNumber + ")");
+            if (command.hasFirstAccount()) {
+                int accNumber = command.getFirstAccount();
+                //Claiming the room first, so an opening which is logged can always be made
+                if (!accounts.claim()) {
+                    if (accounts.exists(accNumber)) {
+                        out.send(Reply.DUPLICATE_ACCOUNT, accNumber);
                     } else {
-                        accList.add(a);
-                        out.println("Opened account" + " " + accNumber);
+                        out.send(Reply.STORE_FULL);
                     }
-                    openLock = false;
-                    OPEN_MONITOR.notify();
+                    return false;
+                }
+                /*
+                 * Recording the account before it can be found, so no change to it is ever logged ahead of
+                 * its opening. Replaying the opening of a duplicate does nothing.
+                 */
+                long position;
+                boolean opened;
+                long e = epochs.enter();
+                try {
+                    position = log.open(e, accNumber);
+                    opened = accounts.open(accNumber, e);
+                } finally {
+                    epochs.exit(e);
+                }
+                //Do not allow the same account to be created more than once
+                if (!opened) {
+                    out.send(Reply.DUPLICATE_ACCOUNT, accNumber);
+                } else {
+                    log.await(position);
+                    out.send(Reply.OPENED, accNumber);
+                    return true;
                 }
             } else {
-                out.println("Please provide an integer value for the account number!");
+                out.send(Reply.NO_ACCOUNT_NUMBER);
             }
+            return false;
         }
 
         /**
-         * Prints the state of all accounts and a conversion rate to the client window.
+         * Prints the state of all accounts and a conversion rate to the client window. The state is read
+         * from a snapshot, so it neither waits for nor holds up the commands changing the accounts.
          *
-         * @param out An instance of PrintWriter that prints text in the client window.
+         * @param out Where the response to the client is written.
          */
-        private static void printState(PrintWriter out) throws InterruptedException {
-            //Not allowing to modify any account info while state is being printed
-            synchronized (ACCOUNTS_MONITOR) {
-                Collections.sort(accList);
-                for (int i = 0; i < accList.size(); i++) {
-                    while (accList.get(i).isLock()) {
-                        ACCOUNTS_MONITOR.wait();
+        private static void printState(Response out) throws IOException, InterruptedException {
+            long draining = System.nanoTime();
+            long snapshot = epochs.snapshot();
+            metrics.snapshotWait(System.nanoTime() - draining);
+            long r;
+            try {
+                //The rate set by the same changes as the balances, so the two always match
+                r = rate.at(snapshot).getValue();
+                //Accounts come sorted, and lines go out in chunks as the writer's buffer fills
+                accounts.forEach(snapshot, out::account);
+            } finally {
+                releaseSnapshot(snapshot);
+            }
+            out.state(r);
+        }
+
+        /**
+         * Performs a single command sent by a client using the text protocol.
+         *
+         * @param command A parser owned by the client's connection.
+         * @param curLine A line received from the client, without the line terminator.
+         * @param out     Where the response to the client is written.
+         * @param limiter The limiter of the client's connection.
+         * @return false if the client asked to close the connection, true otherwise.
+         */
+        static boolean execute(CommandParser command, CharSequence curLine, Response out, Admission.Limiter limiter)
+                throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            if (curLine == LineBuffer.TOO_LONG) {
+                out.send(Reply.LINE_TOO_LONG);
+                metrics.command(CommandParser.Command.UNSUPPORTED, System.nanoTime() - start, false);
+                return true;
+            }
+            return perform(command, command.parse(curLine), start, out, limiter);
+        }
+
+        /**
+         * Performs a single command sent by a client using the binary protocol.
+         *
+         * @param command A parser owned by the client's connection.
+         * @param frame   A frame received from the client, without its length.
+         * @param out     Where the response to the client is written.
+         * @param limiter The limiter of the client's connection.
+         * @return false if the client asked to close the connection, true otherwise.
+         */
+        static boolean execute(CommandParser command, ByteBuffer frame, Response out, Admission.Limiter limiter)
+                throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            return perform(command, command.decode(frame), start, out, limiter);
+        }
+
+        /**
+         * Performs a command, whichever protocol it was sent with, and records its metrics.
+         *
+         * @param command The parser holding the command's arguments.
+         * @param c       The command.
+         * @param start   When the command was received, from System.nanoTime().
+         * @param out     Where the response to the client is written.
+         * @param limiter The limiter of the client's connection.
+         * @return false if the client asked to close the connection, true otherwise.
+         */
+        private static boolean perform(CommandParser command, CommandParser.Command c, long start, Response out,
+                Admission.Limiter limiter) throws IOException, InterruptedException {
+            boolean applied = true;
+            try {
+                //A client sending commands faster than it may is told so instead of being served; it can still leave
+                if (c != CommandParser.Command.CLOSE && !limiter.admit()) {
+                    out.send(Reply.BUSY);
+                    applied = false;
+                } else if (following != null && isChange(c)) {
+                    //A standby only changes its accounts as the primary tells it to
+                    out.send(Reply.STANDBY);
+                    applied = false;
+                } else {
+                    //The following block gathers a command from the client and performs the expected operation
+                    switch (c) {
+                        case RATE:
+                            applied = changeRate(command, out);
+                            break;
+                        case OPEN:
+                            applied = openAccount(command, out);
+                            break;
+                        case STATE:
+                            printState(out);
+                            break;
+                        case TRANSFER:
+                            applied = checkValidnessAndTransfer(command, out);
+                            break;
+                        case CONVERT:
+                            applied = checkValidnessAndConvert(command, out);
+                            break;
+                        case BATCH:
+                            applied = checkValidnessAndBatch(command, out);
+                            break;
+                        case CLOSE:
+                            //EXTRA FEATURE: The following happens in case a user would want to disconnect
+                            out.send(Reply.CLOSED);
+                            break;
+                        case STATS:
+                            out.stats(metrics);
+                            break;
+                        case PROMOTE:
+                            if (promote()) {
+                                out.send(Reply.PROMOTED);
+                            } else {
+                                out.send(Reply.ALREADY_PRIMARY);
+                                applied = false;
+                            }
+                            break;
+                        default:
+                            out.send(Reply.UNSUPPORTED);
+                            applied = false;
                     }
-                    accList.get(i).setLock(true);
-                    out.println(accList.get(i).getAccNum() + ": " + "Arian " +
-                            accList.get(i).getArian() + ", Pres " + accList.get(i).getPres());
-                    accList.get(i).setLock(false);
-                    ACCOUNTS_MONITOR.notify();
                 }
+            } catch (Exception e) {
+                metrics.error(c);
+                throw e;
             }
-            //Not allowing to modify rate while rate is being printed
-            synchronized (RATE_MONITOR) {
-                while (rateLock) {
-                    RATE_MONITOR.wait();
-                }
-                rateLock = true;
-                out.println("Rate " + rate);
-                rateLock = false;
-                RATE_MONITOR.notify();
+            metrics.command(c, System.nanoTime() - start, applied);
+            return c != CommandParser.Command.CLOSE;
+        }
+
+        /**
+         * Tells whether a command changes the accounts or the rate.
+         */
+        private static boolean isChange(CommandParser.Command c) {
+            switch (c) {
+                case RATE:
+                case OPEN:
+                case TRANSFER:
+                case CONVERT:
+                case BATCH:
+                    return true;
+                default:
+                    return false;
             }
         }
 
@@ -371,47 +1090,71 @@ public class Server {
          * There may be several running clients at the same time.
          */
         public void run() {
-            System.out.println("Connected: " + socket);
+            EventLog.log(EventLog.Level.CONNECTION, "Connected: ", socket);
+            metrics.connected();
+            //Responses are buffered and sent together once every command received so far has been handled
+            Response out = null;
+            boolean idle = false;
             try {
-                Scanner in = new Scanner(socket.getInputStream());
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-                Scanner line = null;
-                while (in.hasNextLine()) {
-                    //Initialising the scanner for the current line to prevent '/n' error
-                    String curLine = "";
-                    if (in.hasNextLine()) {
-                        curLine = in.nextLine();
-                        line = new Scanner(curLine);
-                    }
-                    //The following block gathers a command from the client and performs the expected operation
-                    if (curLine.matches(REGEX_RATE)) {
-                        changeRate(line, out);
-                    } else if (curLine.matches(REGEX_OPEN)) {
-                        openAccount(line, out);
-                    } else if (curLine.matches(REGEX_STATE)) {
-                        printState(out);
-                    } else if (curLine.matches(REGEX_TRANSFER)) {
-                        checkValidnessAndTransfer(line, out);
-                    } else if (curLine.matches(REGEX_CONVERT)) {
-                        checkValidnessAndConvert(line, out);
-                    } else if (curLine.matches(REGEX_CLOSE)) {
-                        //EXTRA FEATURE: The following happens in case a user would want to disconnect
-                        out.println("Have a nice day!");
-                        socket.close();
+                //Reading gives up once the client has sent nothing for this long
+                socket.setSoTimeout(Admission.IDLE_MILLIS);
+                InputStream in = socket.getInputStream();
+                CommandParser command = new CommandParser();
+                Admission.Limiter limiter = Admission.newLimiter();
+                LineBuffer input = new LineBuffer();
+                int n = input.read(in);
+                //The first byte tells which protocol the client uses
+                boolean binary = n > 0 && input.skipGreeting();
+                out = binary ? new BinaryResponse(new BufferedOutputStream(socket.getOutputStream()))
+                        : new TextResponse(new PrintWriter(socket.getOutputStream()));
+                boolean open = true;
+                while (open && n >= 0) {
+                    if (binary) {
+                        for (ByteBuffer frame = input.nextFrame(); open && frame != null; frame = input.nextFrame()) {
+                            open = execute(command, frame, out, limiter);
+                        }
                     } else {
-                        out.println("Unsupported command or missing/unnecessary argument(s)!");
+                        for (CharSequence line = input.nextLine(); open && line != null; line = input.nextLine()) {
+                            open = execute(command, line, out, limiter);
+                        }
+                    }
+                    out.flush();
+                    if (open) {
+                        n = input.read(in);
                     }
-                    line.close();
                 }
-                in.close();
+                //The client may have disconnected without ending its last line
+                CharSequence last = binary ? null : input.remainder();
+                if (open && last != null) {
+                    execute(command, last, out, limiter);
+                }
+            } catch (SocketTimeoutException e) {
+                idle = true;
+                metrics.timedOut();
+                EventLog.log(EventLog.Level.CONNECTION, "Idle: ", socket);
             } catch (Exception e) {
-                System.out.println("Error:" + socket + " " + e);
+                EventLog.log(EventLog.Level.ERROR, "Error:" + socket + " " + e);
             } finally {
+                try {
+                    if (idle && out == null) {
+                        //The client never sent anything, so it is told in text
+                        out = new TextResponse(new PrintWriter(socket.getOutputStream()));
+                    }
+                    if (out != null) {
+                        if (idle) {
+                            out.send(Reply.IDLE);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                }
                 try {
                     socket.close();
                 } catch (IOException e) {
                 }
-                System.out.println("Closed: " + socket);
+                EventLog.log(EventLog.Level.CONNECTION, "Closed: ", socket);
+                metrics.disconnected();
+                Admission.disconnect();
             }
         }
     }
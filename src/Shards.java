@@ -0,0 +1,306 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class splits the accounts into shards by account number and gives every shard a thread of its own.
+ * Only that thread changes the shard's accounts, so commands need no account locks: a command is queued
+ * to the shards owning its accounts and the connection's thread waits for the result. Each shard takes its
+ * commands from a bounded queue which many threads add to with a compare-and-set and no lock.
+ * <p>
+ * A command touching accounts of several shards, such as a Transfer between two shards, is queued to every
+ * one of them. Each shard first checks the part of the command concerning its own accounts and waits for the
+ * others to do the same, so the command is applied by all of them or by none. The shard checking last commits
+ * the command, e.g. by logging it, and only then does each shard apply its part. A command is thus committed
+ * before any command a shard runs after it, in the order the shards apply them. Commands touching several
+ * shards are queued one at a time, so every shard meets them in the same order and no two shards wait for
+ * each other.
+ */
+class Shards {
+    //Number of commands a shard's queue holds, a power of two
+    private static final int CAPACITY = 1024;
+    //How many times an idle thread checks for work again before it parks
+    private static final int SPINS = 100;
+
+    /**
+     * A command, or the part of it, run by shard threads.
+     */
+    abstract static class Task {
+        private final AtomicInteger parts = new AtomicInteger();
+        //Shards which have not checked their part yet
+        private final AtomicInteger unchecked = new AtomicInteger();
+        private final Thread waiter = Thread.currentThread();
+        private volatile boolean done;
+        private volatile boolean refused;
+        //Set once the command is committed or refused; committed is written before it
+        private volatile boolean decided;
+        private boolean committed;
+        private long result;
+        private Throwable failure;
+
+        /**
+         * Checks whether the part of the command concerning the accounts of a shard can be applied. Runs on
+         * the thread of that shard before any shard applies its part.
+         *
+         * @param shard The index of the shard.
+         * @return false if the command must not be applied by any shard.
+         */
+        boolean check(int shard) {
+            return true;
+        }
+
+        /**
+         * Applies the changes concerning the accounts of a shard. Runs on the thread of that shard.
+         *
+         * @param shard The index of the shard.
+         */
+        abstract void apply(int shard);
+
+        /**
+         * Commits the command once every shard has checked its part, before any shard applies it. Runs on
+         * the thread of the shard checking last.
+         *
+         * @return A value handed back to the thread which queued the command.
+         */
+        abstract long commit() throws IOException;
+
+        /**
+         * Checks the part of a shard and waits until every shard has checked its own and the command is
+         * committed.
+         *
+         * @return true if the command was committed, so the shard is to apply its part.
+         */
+        private boolean agreed(int shard) {
+            boolean accepted;
+            try {
+                accepted = check(shard);
+            } catch (ArithmeticException e) {
+                accepted = false;
+            }
+            if (!accepted) {
+                refused = true;
+            }
+            if (unchecked.decrementAndGet() == 0) {
+                if (!refused) {
+                    try {
+                        result = commit();
+                        committed = true;
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                }
+                decided = true;
+            } else {
+                //Waiting for the other shards, which get to the command once they are done with those queued before it
+                for (int spins = 0; !decided; spins++) {
+                    if (spins < SPINS) {
+                        Thread.onSpinWait();
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            }
+            if (!accepted) {
+                throw new ArithmeticException("Refused by shard " + shard);
+            }
+            return committed;
+        }
+
+        private void partDone(Throwable error) {
+            if (error != null) {
+                failure = error;
+            }
+            //The last part to finish hands the failures of the others to the waiter through this update
+            if (parts.decrementAndGet() == 0) {
+                done = true;
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+
+    private final int count;
+    private final Shard[] shards;
+    //Held while a task is queued to several shards, so every shard gets such tasks in the same order
+    private final ReentrantLock queueing = new ReentrantLock();
+
+    /**
+     * Starts the shard threads.
+     *
+     * @param count The number of shards.
+     */
+    Shards(int count) {
+        this.count = count;
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Finds the shard owning an account.
+     *
+     * @param accNum The account number.
+     * @return The index of the shard.
+     */
+    int of(int accNum) {
+        return Math.floorMod(accNum, count);
+    }
+
+    /**
+     * Runs a task on one shard and waits for it.
+     *
+     * @param task  The task, created by the calling thread.
+     * @param shard The index of the shard.
+     * @return The value returned by {@link Task#commit()}.
+     * @throws ArithmeticException If the shard refused the task, see {@link Task#check(int)}.
+     */
+    long run(Task task, int shard) throws IOException {
+        task.parts.set(1);
+        task.unchecked.set(1);
+        shards[shard].submit(task);
+        return await(task);
+    }
+
+    /**
+     * Runs a task on two shards, or once if both are the same shard, and waits for it.
+     *
+     * @param task The task, created by the calling thread.
+     * @param a    The index of one shard.
+     * @param b    The index of the other shard.
+     * @return The value returned by {@link Task#commit()}.
+     * @throws ArithmeticException If a shard refused the task, see {@link Task#check(int)}.
+     */
+    long run(Task task, int a, int b) throws IOException {
+        if (a == b) {
+            return run(task, a);
+        }
+        task.parts.set(2);
+        task.unchecked.set(2);
+        queueing.lock();
+        try {
+            shards[a].submit(task);
+            shards[b].submit(task);
+        } finally {
+            queueing.unlock();
+        }
+        return await(task);
+    }
+
+    /**
+     * Runs a task on every shard owning one of the given accounts and waits for it.
+     *
+     * @param task    The task, created by the calling thread.
+     * @param accNums The account numbers the task touches.
+     * @return The value returned by {@link Task#commit()}.
+     * @throws ArithmeticException If a shard refused the task, see {@link Task#check(int)}.
+     */
+    long run(Task task, int[] accNums) throws IOException {
+        boolean[] involved = new boolean[count];
+        int n = 0;
+        for (int accNum : accNums) {
+            if (!involved[of(accNum)]) {
+                involved[of(accNum)] = true;
+                n++;
+            }
+        }
+        task.parts.set(n);
+        task.unchecked.set(n);
+        if (n > 1) {
+            queueing.lock();
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                if (involved[i]) {
+                    shards[i].submit(task);
+                }
+            }
+        } finally {
+            if (n > 1) {
+                queueing.unlock();
+            }
+        }
+        return await(task);
+    }
+
+    private static long await(Task task) throws IOException {
+        for (int spins = 0; !task.done; spins++) {
+            if (spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.park(task);
+            }
+        }
+        Throwable failure = task.failure;
+        if (failure == null) {
+            return task.result;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IllegalStateException(failure);
+    }
+
+    /**
+     * A single shard: its queue and the thread emptying it.
+     */
+    private static final class Shard implements Runnable {
+        private final int index;
+        private final Thread thread;
+        //The tasks queued to the shard, each in the slot of the array its position maps to
+        private final Ring ring = new Ring(CAPACITY);
+        private final Task[] tasks = new Task[CAPACITY];
+
+        Shard(int index) {
+            this.index = index;
+            thread = new Thread(this, "shard-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Adds a task to the queue, waiting while the queue is full.
+         */
+        void submit(Task task) {
+            long position;
+            while ((position = ring.claim()) < 0) {
+                //The queue is full; the shard is behind, so give it the processor
+                Thread.yield();
+            }
+            tasks[ring.slot(position)] = task;
+            ring.publish(position);
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                if (!ring.ready()) {
+                    if (idle++ < SPINS) {
+                        Thread.onSpinWait();
+                    } else {
+                        ring.await(0);
+                    }
+                    continue;
+                }
+                idle = 0;
+                int slot = ring.slot(ring.head());
+                Task task = tasks[slot];
+                tasks[slot] = null;
+                ring.advance();
+                Throwable error = null;
+                try {
+                    if (task.agreed(index)) {
+                        task.apply(index);
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                }
+                task.partDone(error);
+            }
+        }
+    }
+}
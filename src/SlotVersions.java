@@ -0,0 +1,200 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class maps the slots of off-heap account records to the balances they replaced while a snapshot may
+ * still read them, see {@link OffHeapAccountStore}. Like {@link AccountRegistry} it is split into segments,
+ * each of which is an open-addressing hash table keyed by a primitive int, so slots are never boxed. Each
+ * segment is guarded by its own monitor, as entries come and go, and shrinks back once it is empty.
+ */
+class SlotVersions {
+    //Number of independently locked segments, must be a power of two
+    private static final int SEGMENT_COUNT = 64;
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENT_COUNT);
+    //Initial number of slots per segment, must be a power of two
+    private static final int INITIAL_CAPACITY = 16;
+    //Marks a free slot of a segment; record slots are never negative
+    private static final int FREE = -1;
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Creates an empty map.
+     */
+    SlotVersions() {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Checks whether any record keeps older balances, without locking.
+     *
+     * @return true if there are none.
+     */
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * Retrieves the older balances of a record.
+     *
+     * @param slot The slot of the record.
+     * @return The newest of the older balances, or null if there are none.
+     */
+    Account.Balance get(int slot) {
+        int hash = AccountRegistry.spread(slot);
+        return segments[hash >>> SEGMENT_SHIFT].get(slot, hash);
+    }
+
+    /**
+     * Sets the older balances of a record.
+     *
+     * @param slot    The slot of the record.
+     * @param balance The newest of the older balances.
+     */
+    void put(int slot, Account.Balance balance) {
+        int hash = AccountRegistry.spread(slot);
+        if (segments[hash >>> SEGMENT_SHIFT].put(slot, balance, hash)) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the older balances of a record.
+     *
+     * @param slot The slot of the record.
+     */
+    void remove(int slot) {
+        int hash = AccountRegistry.spread(slot);
+        if (segments[hash >>> SEGMENT_SHIFT].remove(slot, hash)) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Lists the slots of the records keeping older balances. Entries added or dropped while the list is being
+     * made may or may not be in it.
+     *
+     * @return The slots, in no particular order.
+     */
+    int[] slots() {
+        int[] slots = new int[size.get()];
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                if (n + s.count > slots.length) {
+                    slots = Arrays.copyOf(slots, Math.max(slots.length * 2, n + s.count));
+                }
+                for (int key : s.keys) {
+                    if (key != FREE) {
+                        slots[n++] = key;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * A single open-addressing table with linear probing, guarded by its monitor.
+     */
+    private static final class Segment {
+        private int[] keys = free(INITIAL_CAPACITY);
+        private Account.Balance[] values = new Account.Balance[INITIAL_CAPACITY];
+        private int count;
+
+        synchronized Account.Balance get(int slot, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != FREE; i = (i + 1) & mask) {
+                if (keys[i] == slot) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Sets the entry of a slot, returning true if it had none before.
+         */
+        synchronized boolean put(int slot, Account.Balance balance, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; keys[i] != FREE; i = (i + 1) & mask) {
+                if (keys[i] == slot) {
+                    values[i] = balance;
+                    return false;
+                }
+            }
+            //Growing before the table gets too full keeps probe sequences short
+            if ((count + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+                mask = keys.length - 1;
+                i = hash & mask;
+                while (keys[i] != FREE) {
+                    i = (i + 1) & mask;
+                }
+            }
+            keys[i] = slot;
+            values[i] = balance;
+            count++;
+            return true;
+        }
+
+        /**
+         * Drops the entry of a slot, returning true if it had one.
+         */
+        synchronized boolean remove(int slot, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            while (keys[i] != slot) {
+                if (keys[i] == FREE) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            //Entries after the removed one move back, so no probe sequence runs into a gap
+            for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+                int home = AccountRegistry.spread(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+                    i = j;
+                }
+            }
+            keys[i] = FREE;
+            values[i] = null;
+            if (--count == 0 && keys.length > INITIAL_CAPACITY) {
+                //The entries only exist while snapshots are read, so the room they took is given back
+                keys = free(INITIAL_CAPACITY);
+                values = new Account.Balance[INITIAL_CAPACITY];
+            }
+            return true;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            Account.Balance[] oldValues = values;
+            keys = free(capacity);
+            values = new Account.Balance[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != FREE) {
+                    int i = AccountRegistry.spread(oldKeys[j]) & mask;
+                    while (keys[i] != FREE) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+
+        private static int[] free(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, FREE);
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.io.PrintWriter;
+
+/**
+ * This class writes responses as lines of text, one line per response and one line per account of State.
+ * Rates and balances are written as decimal numbers straight from their fixed-point values, without
+ * building strings.
+ */
+class TextResponse implements Response {
+    private final PrintWriter out;
+    //Where decimal numbers are formatted, see Fixed.format()
+    private final char[] number = new char[Fixed.MAX_LENGTH];
+
+    /**
+     * Creates the response of a connection using the text protocol.
+     *
+     * @param out Where the lines are written.
+     */
+    TextResponse(PrintWriter out) {
+        this.out = out;
+    }
+
+    @Override
+    public void send(Reply reply) {
+        out.println(reply.getText());
+    }
+
+    @Override
+    public void send(Reply reply, int value) {
+        out.println(reply.getText() + value + reply.getSuffix());
+    }
+
+    @Override
+    public void refuseLeg(int leg, Reply refusal) {
+        out.println(Reply.BATCH_REFUSED.getText() + leg + ": " + refusal.getText());
+    }
+
+    @Override
+    public void converted(long rate, long version) {
+        out.write(Reply.CONVERTED.getText());
+        print(rate);
+        out.write(" (version ");
+        out.print(version);
+        out.println(')');
+    }
+
+    @Override
+    public void account(int accNum, long arian, long pres) {
+        out.print(accNum);
+        out.write(": Arian ");
+        print(arian);
+        out.write(", Pres ");
+        print(pres);
+        out.println();
+    }
+
+    @Override
+    public void state(long rate) {
+        out.write(Reply.STATE.getText());
+        print(rate);
+        out.println();
+    }
+
+    @Override
+    public void stats(Metrics metrics) {
+        metrics.print(out);
+    }
+
+    @Override
+    public void flush() {
+        out.flush();
+    }
+
+    private void print(long value) {
+        out.write(number, 0, Fixed.format(value, number));
+    }
+}
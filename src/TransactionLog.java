@@ -0,0 +1,659 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps an append-only log of every change made to the accounts and the rate, so that the
+ * state of the server survives a restart. Changes are appended to a buffer in memory while the accounts
+ * involved are still locked, which keeps the log in the same order as the changes themselves. A single
+ * flusher thread then writes everything appended so far and forces it to disk, so many commands share
+ * the cost of one force. With {@link Sync#ALWAYS} there is no flusher: a command awaiting its change
+ * writes and forces everything appended so far itself, once its accounts are unlocked, and the commands
+ * awaiting theirs meanwhile share the next force.
+ * <p>
+ * Every record is a type byte, the epoch of the change, a fixed-width payload and a CRC32 of all of them.
+ * Amounts and rates are fixed-point values, see {@link Fixed}.
+ * A record cut short by a crash is detected by its checksum and dropped when the log is replayed. The epoch
+ * tells which records a checkpoint already holds, see {@link Checkpoint}. The legs of a Batch follow a
+ * header record giving their number and are replayed only if all of them reached the disk.
+ * <p>
+ * Records are also handed, in the order they were appended, to followers such as the connections feeding
+ * standby servers. A log may keep no file at all and exist only to feed its followers.
+ */
+class TransactionLog {
+    /**
+     * When a command counts as done with respect to the disk.
+     */
+    enum Sync {
+        //Every change is forced to disk before its command completes
+        ALWAYS,
+        //Commands wait for the flusher, which forces many changes at once
+        GROUP,
+        //Commands do not wait; the flusher forces changes in the background
+        ASYNC
+    }
+
+    /**
+     * Receives the changes read back from the log.
+     */
+    interface Handler {
+        void open(int accNum);
+
+        void rate(long rate);
+
+        void convert(int accNum, long arian, long pres, long rate);
+
+        void transfer(int accFrom, int accTo, long arian, long pres);
+    }
+
+    /**
+     * Receives the records appended to the log.
+     */
+    interface Follower {
+        /**
+         * Receives records appended to the log. Called by the thread writing them to the file, in the
+         * order they were appended, and must not block.
+         *
+         * @param start   The position of the first record in the log.
+         * @param records Whole records; only valid during the call.
+         */
+        void records(long start, ByteBuffer records);
+    }
+
+    //A log which records nothing, used when durability is turned off
+    static final TransactionLog NONE = new TransactionLog(null, false, Sync.ASYNC, 0);
+
+    private static final byte OPEN = 1;
+    private static final byte BATCH = 2;
+    private static final byte RATE = 3;
+    private static final byte CONVERT = 4;
+    private static final byte TRANSFER = 5;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    //The log file, or null if records are only handed to followers
+    private final FileChannel channel;
+    private final boolean recording;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+    private final Sync sync;
+    private final long windowNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appendedCondition = lock.newCondition();
+    private final Condition flushedCondition = lock.newCondition();
+    private final CRC32 crc = new CRC32();
+    //Records appended but not written yet, and the buffer the flusher writes from; both guarded by lock
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    //Positions in the file just after the last appended record and the last record forced to disk
+    private long appended;
+    private long durable;
+    //Whether a thread is writing the spare buffer out; guarded by lock
+    private boolean flushing;
+    private IOException failure;
+    //Where the record being appended starts in the pending buffer
+    private int recordStart;
+    //The latest epoch found when the log was replayed
+    private long lastEpoch;
+
+    private TransactionLog(FileChannel channel, boolean recording, Sync sync, long windowNanos) {
+        this.channel = channel;
+        this.recording = recording;
+        this.sync = sync;
+        this.windowNanos = windowNanos;
+    }
+
+    /**
+     * Opens the log, replays the changes recorded in it and starts recording new changes after them.
+     * When the server starts from a checkpoint, only the changes the checkpoint does not hold are replayed.
+     *
+     * @param file         The log file, created if it does not exist.
+     * @param sync         When commands count as done with respect to the disk.
+     * @param windowMicros How long the flusher waits for more changes before forcing them to disk.
+     * @param start        The position to replay from; every record before it is held by the checkpoint.
+     * @param skipEpoch    Records stamped with this epoch or an earlier one are held by the checkpoint.
+     * @param replay       Receives the changes not held by the checkpoint.
+     * @return The opened log.
+     */
+    static TransactionLog open(Path file, Sync sync, long windowMicros, long start, long skipEpoch,
+                               Handler replay) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        TransactionLog log = new TransactionLog(channel, true, sync, TimeUnit.MICROSECONDS.toNanos(windowMicros));
+        log.appended = log.replay(start, skipEpoch, replay);
+        log.durable = log.appended;
+        if (sync != Sync.ALWAYS) {
+            log.startFlusher();
+        }
+        return log;
+    }
+
+    /**
+     * Creates a log which keeps no file and only hands its records to followers. Commands never wait for it.
+     *
+     * @return The new log, starting at position 0.
+     */
+    static TransactionLog inMemory() {
+        TransactionLog log = new TransactionLog(null, true, Sync.ASYNC, 0);
+        log.startFlusher();
+        return log;
+    }
+
+    private void startFlusher() {
+        Thread flusher = new Thread(this::flush, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Starts handing every record appended from now on to a follower. Records appended earlier may be
+     * handed to it as well and should be skipped.
+     *
+     * @param follower The follower.
+     * @return The position of the first record the follower must receive.
+     */
+    long follow(Follower follower) {
+        lock.lock();
+        try {
+            followers.add(follower);
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops handing records to a follower.
+     *
+     * @param follower The follower.
+     */
+    void unfollow(Follower follower) {
+        followers.remove(follower);
+    }
+
+    /**
+     * Retrieves the position just after the last record appended.
+     *
+     * @return A position in the log file.
+     */
+    long position() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the latest epoch found in the log when it was opened.
+     *
+     * @return An epoch, or 0 if nothing was replayed.
+     */
+    long getLastEpoch() {
+        return lastEpoch;
+    }
+
+    /**
+     * Records the opening of an account.
+     *
+     * @param epoch  The epoch of the change.
+     * @param accNum The account number.
+     * @return The position to pass to {@link #await(long)}.
+     */
+    long open(long epoch, int accNum) throws IOException {
+        if (!recording) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            ByteBuffer b = begin(OPEN, epoch);
+            b.putInt(accNum);
+            return end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a change of the conversion rate.
+     *
+     * @param epoch The epoch of the change.
+     * @param rate  The new rate.
+     * @return The position to pass to {@link #await(long)}.
+     */
+    long rate(long epoch, long rate) throws IOException {
+        if (!recording) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            ByteBuffer b = begin(RATE, epoch);
+            b.putLong(rate);
+            return end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a conversion together with the rate it was made at.
+     *
+     * @param epoch  The epoch of the change.
+     * @param accNum The account number.
+     * @param arian  The amount of arian converted to pres.
+     * @param pres   The amount of pres converted to arian.
+     * @param rate   The rate used.
+     * @return The position to pass to {@link #await(long)}.
+     */
+    long convert(long epoch, int accNum, long arian, long pres, long rate) throws IOException {
+        if (!recording) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            ByteBuffer b = begin(CONVERT, epoch);
+            b.putInt(accNum).putLong(arian).putLong(pres).putLong(rate);
+            return end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a transfer.
+     *
+     * @param epoch   The epoch of the change.
+     * @param accFrom The sender.
+     * @param accTo   The receiver.
+     * @param arian   The amount of arian moved.
+     * @param pres    The amount of pres moved.
+     * @return The position to pass to {@link #await(long)}.
+     */
+    long transfer(long epoch, int accFrom, int accTo, long arian, long pres) throws IOException {
+        if (!recording) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            ByteBuffer b = begin(TRANSFER, epoch);
+            b.putInt(accFrom).putInt(accTo).putLong(arian).putLong(pres);
+            return end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the legs of a Batch together, so that a crash keeps either all of them or none.
+     *
+     * @param epoch The epoch of the change.
+     * @param batch The legs, applied in this order.
+     * @param rate  The rate used by every Convert leg.
+     * @return The position to pass to {@link #await(long)}.
+     */
+    long batch(long epoch, Batch batch, long rate) throws IOException {
+        if (!recording) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            begin(BATCH, epoch).putInt(batch.size());
+            seal();
+            for (int i = 0; i < batch.size(); i++) {
+                if (batch.isConvert(i)) {
+                    begin(CONVERT, epoch).putInt(batch.getFirstAccount(i)).putLong(batch.getArian(i))
+                            .putLong(batch.getPres(i)).putLong(rate);
+                } else {
+                    begin(TRANSFER, epoch).putInt(batch.getFirstAccount(i)).putInt(batch.getSecondAccount(i))
+                            .putLong(batch.getArian(i)).putLong(batch.getPres(i));
+                }
+                seal();
+            }
+            return commit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every change up to the given position is as durable as the sync policy requires.
+     * Should be called after the accounts are unlocked, so other commands are not held up by the disk.
+     *
+     * @param position A position returned when a change was recorded.
+     */
+    void await(long position) throws IOException, InterruptedException {
+        if (sync != Sync.ASYNC) {
+            awaitDurable(position);
+        }
+    }
+
+    /**
+     * Waits until every change up to the given position is forced to disk, whatever the sync policy.
+     *
+     * @param position A position in the log.
+     */
+    void awaitDurable(long position) throws IOException, InterruptedException {
+        if (channel == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            while (durable < position && failure == null) {
+                if (sync == Sync.ALWAYS && !flushing) {
+                    writeAppended();
+                } else {
+                    flushedCondition.await();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer begin(byte type, long epoch) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (pending.remaining() < 64) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        recordStart = pending.position();
+        return pending.put(type).putLong(epoch);
+    }
+
+    /**
+     * Finishes the record started by {@link #begin(byte, long)} and hands it on to be written.
+     */
+    private long end() {
+        seal();
+        return commit();
+    }
+
+    /**
+     * Finishes the record started by {@link #begin(byte, long)} with its checksum.
+     */
+    private void seal() {
+        int start = recordStart;
+        crc.reset();
+        crc.update(pending.array(), start, pending.position() - start);
+        pending.putInt((int) crc.getValue());
+        appended += pending.position() - start;
+    }
+
+    /**
+     * Wakes the flusher, if there is one, to write the sealed records.
+     */
+    private long commit() {
+        if (sync != Sync.ALWAYS) {
+            appendedCondition.signal();
+        }
+        return appended;
+    }
+
+    /**
+     * The body of the flusher thread: writes and forces batches of records until the server stops.
+     */
+    private void flush() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.position() == 0) {
+                    appendedCondition.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (windowNanos > 0) {
+                //Giving other commands the chance to share this force
+                try {
+                    TimeUnit.NANOSECONDS.sleep(windowNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            lock.lock();
+            try {
+                writeAppended();
+                if (failure != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Hands everything appended so far to the followers, writes it and forces it to disk. Called with the lock
+     * held and no other thread flushing; the lock is let go meanwhile, so commands go on appending.
+     */
+    private void writeAppended() {
+        ByteBuffer batch = pending;
+        pending = spare;
+        spare = batch;
+        long end = appended;
+        flushing = true;
+        lock.unlock();
+        IOException error = null;
+        try {
+            batch.flip();
+            publish(end - batch.limit(), batch);
+            if (channel != null) {
+                try {
+                    write(batch);
+                    channel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            batch.clear();
+        } finally {
+            lock.lock();
+            flushing = false;
+            if (error != null) {
+                EventLog.log(EventLog.Level.ERROR, "Error: transaction log ", error);
+                failure = error;
+            } else {
+                durable = end;
+            }
+            flushedCondition.signalAll();
+        }
+    }
+
+    /**
+     * Hands records to every follower, each getting its own view of them.
+     *
+     * @param start   The position of the first record in the log.
+     * @param records The records, from the buffer's position to its limit.
+     */
+    private void publish(long start, ByteBuffer records) {
+        for (Follower follower : followers) {
+            follower.records(start, records.duplicate());
+        }
+    }
+
+    private void write(ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            channel.write(b);
+        }
+    }
+
+    /**
+     * Reads every complete record from the given position, drops anything after the last one
+     * and leaves the file positioned for appending.
+     *
+     * @return The position just after the last complete record.
+     */
+    private long replay(long start, long skipEpoch, Handler handler) throws IOException {
+        if (start > channel.size()) {
+            EventLog.log(EventLog.Level.INFO,
+                    "The transaction log is shorter than the checkpoint expects, replaying nothing");
+            start = channel.size();
+        }
+        channel.position(start);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        Reader reader = new Reader();
+        long valid = start + reader.read(in, skipEpoch, handler);
+        lastEpoch = reader.lastEpoch;
+        if (channel.size() > valid) {
+            EventLog.log(EventLog.Level.INFO,
+                    "Dropping " + (channel.size() - valid) + " incomplete bytes from the transaction log");
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        return valid;
+    }
+
+    /**
+     * Replays records taken from the log of another server, e.g. by a standby.
+     *
+     * @param records   Whole records, as handed to a {@link Follower}.
+     * @param skipEpoch Records stamped with this epoch or an earlier one are skipped.
+     * @param handler   Receives the changes.
+     * @throws IOException If the records are damaged or cut short.
+     */
+    static void replay(byte[] records, long skipEpoch, Handler handler) throws IOException {
+        long read = new Reader().read(new DataInputStream(new ByteArrayInputStream(records)), skipEpoch, handler);
+        if (read != records.length) {
+            throw new IOException("Damaged records after " + read + " of " + records.length + " bytes");
+        }
+    }
+
+    /**
+     * Hands a record to the handler.
+     *
+     * @param payload The record, positioned just after its epoch.
+     */
+    private static void apply(byte type, ByteBuffer payload, Handler handler) {
+        switch (type) {
+            case OPEN:
+                handler.open(payload.getInt());
+                break;
+            case RATE:
+                handler.rate(payload.getLong());
+                break;
+            case CONVERT:
+                handler.convert(payload.getInt(), payload.getLong(), payload.getLong(), payload.getLong());
+                break;
+            default:
+                handler.transfer(payload.getInt(), payload.getInt(), payload.getLong(), payload.getLong());
+        }
+    }
+
+    /**
+     * Decodes records and hands them to a handler.
+     */
+    private static final class Reader {
+        private final CRC32 crc = new CRC32();
+        //The latest epoch found in the records read
+        private long lastEpoch;
+
+        /**
+         * Reads records until the stream ends or holds a record which is damaged or cut short.
+         *
+         * @return The number of bytes taken by the complete records; the legs of a Batch cut short
+         *         are neither counted nor applied.
+         */
+        long read(DataInputStream in, long skipEpoch, Handler handler) throws IOException {
+            long valid = 0;
+            byte[] record = new byte[64];
+            ByteBuffer payload = ByteBuffer.wrap(record);
+            //The legs of a Batch read so far, held back until its last leg is read
+            List<byte[]> legs = new ArrayList<>();
+            int legsLeft = 0;
+            long legsSize = 0;
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    int size = size(type);
+                    if (size == 0) {
+                        break;
+                    }
+                    if (legsLeft > 0 && (type == OPEN || type == BATCH || type == RATE)) {
+                        break;
+                    }
+                    record[0] = type;
+                    in.readFully(record, 1, size - 5);
+                    int checksum = in.readInt();
+                    crc.reset();
+                    crc.update(record, 0, size - 4);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    payload.position(1);
+                    long epoch = payload.getLong();
+                    lastEpoch = Math.max(lastEpoch, epoch);
+                    if (type == BATCH) {
+                        legsLeft = payload.getInt();
+                        legsSize = size;
+                    } else if (legsLeft > 0) {
+                        legs.add(Arrays.copyOf(record, size));
+                        legsSize += size;
+                        legsLeft--;
+                    } else {
+                        valid += size;
+                        if (epoch > skipEpoch) {
+                            apply(type, payload, handler);
+                        }
+                    }
+                    if (legsLeft == 0 && legsSize > 0) {
+                        valid += legsSize;
+                        for (byte[] leg : legs) {
+                            ByteBuffer b = ByteBuffer.wrap(leg);
+                            b.position(1);
+                            if (b.getLong() > skipEpoch) {
+                                apply(leg[0], b, handler);
+                            }
+                        }
+                        legs.clear();
+                        legsSize = 0;
+                    }
+                }
+            } catch (EOFException e) {
+                //The end of the records, possibly in the middle of a record that was never completed
+            }
+            return valid;
+        }
+    }
+
+    /**
+     * Retrieves the size of a record including its type and checksum.
+     *
+     * @return The size, or 0 if there is no such type of record.
+     */
+    private static int size(byte type) {
+        switch (type) {
+            case OPEN:
+            case BATCH:
+                return 17;
+            case RATE:
+                return 21;
+            case CONVERT:
+                return 41;
+            case TRANSFER:
+                return 37;
+            default:
+                return 0;
+        }
+    }
+}
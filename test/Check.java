@@ -0,0 +1,78 @@
+import java.util.Objects;
+
+/**
+ * This class is the small harness the tests in this directory share, so they need nothing but the JDK.
+ * A failed check is printed with what was expected and counted, and the tests carry on, so one run lists
+ * every failure at once.
+ */
+final class Check {
+    private static int checks;
+    private static int failures;
+
+    private Check() {
+    }
+
+    /**
+     * Checks that a value is the expected one.
+     *
+     * @param what     Describes the value, printed if the check fails.
+     * @param expected The expected value.
+     * @param actual   The value found.
+     */
+    static void equal(String what, Object expected, Object actual) {
+        checks++;
+        if (!Objects.equals(expected, actual)) {
+            failures++;
+            System.out.println("FAILED " + what + ": expected <" + expected + "> but was <" + actual + ">");
+        }
+    }
+
+    /**
+     * Checks that a condition holds.
+     *
+     * @param what      Describes the condition, printed if it does not hold.
+     * @param condition The condition.
+     */
+    static void that(String what, boolean condition) {
+        checks++;
+        if (!condition) {
+            failures++;
+            System.out.println("FAILED " + what);
+        }
+    }
+
+    /**
+     * Checks that an operation fails with an ArithmeticException.
+     *
+     * @param what      Describes the operation, printed if it does not fail that way.
+     * @param operation The operation.
+     */
+    static void overflows(String what, Runnable operation) {
+        checks++;
+        try {
+            operation.run();
+        } catch (ArithmeticException e) {
+            return;
+        }
+        failures++;
+        System.out.println("FAILED " + what + ": no ArithmeticException");
+    }
+
+    /**
+     * Retrieves the number of checks made so far.
+     *
+     * @return The number of checks.
+     */
+    static int getChecks() {
+        return checks;
+    }
+
+    /**
+     * Retrieves the number of checks which failed so far.
+     *
+     * @return The number of failures.
+     */
+    static int getFailures() {
+        return failures;
+    }
+}
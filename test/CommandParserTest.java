@@ -0,0 +1,256 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Random;
+
+/**
+ * This class checks that commands are read the way the original Scanner and regular expression based
+ * server read them. Lines go through {@link Server.Talk#execute} as they would from a client, one after
+ * the other on the same book, and every response is compared with the one the original server gave.
+ * Where the response differs on purpose, e.g. because amounts are now exact, the row says so.
+ */
+class CommandParserTest {
+    private static final String WRONG_FORMAT =
+            "Wrong Format of values. The Correct Format is: (number,number). Example: (3,4) or (8.567,9.1)";
+    private static final String OUT_OF_RANGE =
+            "Amount out of range! No amount or balance can go beyond 9223372036854.775807.";
+    //Balances are exact, where the original printed floats such as -1.2345576E8, and NaN for account 1
+    private static final String STATE = "-2147483648: Arian 0.0, Pres 0.0\n-8: Arian 0.0, Pres 0.0\n"
+            + "1: Arian 123455788.54999, Pres -244.606667\n2: Arian -123455755.49999, Pres -67.083333\n"
+            + "3: Arian 0.0, Pres 0.0\n4: Arian 0.0, Pres 0.0\n5: Arian 0.0, Pres 0.0\n7: Arian 0.0, Pres 0.0\n"
+            + "30: Arian 0.0, Pres 0.0\n1000: Arian 0.0, Pres 0.0\n2147483647: Arian 0.0, Pres 0.0\nRate 0.1";
+
+    //Lines and the responses they get, run in this order
+    private static final String[][] PARITY = {
+            {"open 1", "Opened account 1"},
+            {"open 2", "Opened account 2"},
+            {"OPEN 3", "Opened account 3"},
+            {"open  4", "Opened account 4"},
+            {"open 1", "Cannot create a duplicate account! (1)"},
+            {"open x", "Please provide an integer value for the account number!"},
+            {"open", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"open 5 6", "Opened account 5"},
+            {"open +7", "Opened account 7"},
+            {"open -8", "Opened account -8"},
+            {"open 99999999999", "Please provide an integer value for the account number!"},
+            {"open 2147483647", "Opened account 2147483647"},
+            {"open 2147483648", "Please provide an integer value for the account number!"},
+            {"open -2147483648", "Opened account -2147483648"},
+            {"open 1,000", "Opened account 1000"},
+            {"open 007", "Cannot create a duplicate account! (7)"},
+            //Scanner takes any Unicode digit
+            {"open \u0663\u0660", "Opened account 30"},
+            {"open\t12", "Unsupported command or missing/unnecessary argument(s)!"},
+            {" open 13", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"transfer 1 2 (3,4)", "Transferred"},
+            {"Transfer 1 2 (3.5,4.25) extra", "Transferred"},
+            {"transfer  1 2 (1,2)", "Transferred"},
+            {"transfer\t1\t2\t(1,2)", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"transfer1 2 (1,1)", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"transfer 1 1 (1,1)", "You cannot transfer to the same account!"},
+            {"transfer 1 9 (1,1)", "One or both of the accounts does not exist in the system!"},
+            {"transfer x 2 (1,1)", "First account number should be an integer!"},
+            {"transfer 1 y (1,1)", "Second account number should be an integer!"},
+            {"transfer 1 2", "Please provide an amount of money to transfer!"},
+            {"transfer 1 2 3", WRONG_FORMAT},
+            {"transfer 1 2 ()", WRONG_FORMAT},
+            {"transfer 1 2 (1,2", WRONG_FORMAT},
+            {"transfer 1 2 1,2)", WRONG_FORMAT},
+            {"transfer 1 2 (a,b)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (1)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (,)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (1.2.3,1)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (--1,1)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (0x1p3,1)", "Values should be floating-point numbers!"},
+            {"transfer 1 2 (1e,1)", "Values should be floating-point numbers!"},
+            //Brackets anywhere are ignored, empty parts are skipped and a third number is ignored
+            {"transfer 1 2 (1,2,3)", "Transferred"},
+            {"transfer 1 2 ((1,2))", "Transferred"},
+            {"transfer 1 2 (1(2,3)", "Transferred"},
+            {"transfer 1 2 (,1,2)", "Transferred"},
+            {"transfer 1 2 (1,,2)", "Transferred"},
+            {"transfer 1 2 (.5,5.)", "Transferred"},
+            {"transfer 1 2 (-1,+2)", "Transferred"},
+            {"transfer 1 2 (1,000,2)", "Transferred"},
+            {"transfer 1 2 (1e3,.5)", "Transferred"},
+            {"transfer 1 2 (1e-5,-.5)", "Transferred"},
+            {"transfer 1 2 (-9223372036854.775808,0)", OUT_OF_RANGE},
+            //The original answered "Converted"; the rate used and its version were added since
+            {"convert 1 (1,2)", "Converted at rate 10.0 (version 0)"},
+            {"CONVERT 2 (0.5,1e2)", "Converted at rate 10.0 (version 0)"},
+            {"convert 1 (1,234.5,1)", "Converted at rate 10.0 (version 0)"},
+            {"convert 9 (1,1)", "Account is not found on the server!"},
+            {"convert x (1,1)", "Account number should be an integer!"},
+            {"convert 1", "Please provide an amount of money to convert!"},
+            {"convert 1 1,1", WRONG_FORMAT},
+            {"convert 1 (1,x)", "Values should be floating-point numbers!"},
+            //The original converted, turning both balances into NaN
+            {"convert 1 (NaN,Infinity)", "Values should be floating-point numbers!"},
+            {"rate 5", "Rate changed"},
+            {"rate -1", "Rate cannot be a negative number!"},
+            {"rate 0", "Rate cannot be set to 0. Please retry!"},
+            {"rate -0", "Rate cannot be set to 0. Please retry!"},
+            //The original kept the old rate and still answered that it changed
+            {"rate abc", "Please enter a float value!\nRate changed"},
+            {"rate 1,5", "Please enter a float value!\nRate changed"},
+            {"rate (1,2)", "Please enter a float value!\nRate changed"},
+            {"rate 2.5 extra", "Rate changed"},
+            //The original set this rate as the float 1.0E20, which no fixed-point value holds
+            {"rate 99999999999999999999", OUT_OF_RANGE},
+            {"rate +3", "Rate changed"},
+            {"rate 1e-5", "Rate changed"},
+            {"Rate 0.1", "Rate changed"},
+            //Only the five rates which changed it gave the rate a new version
+            {"convert 1 (0.1,0.2)", "Converted at rate 0.1 (version 5)"},
+            {"transfer 2 1 (123456789,0.3333333333)", "Transferred"},
+            {"state", STATE},
+            {"STATE", STATE},
+            {"state ", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"statex", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"foo", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"", "Unsupported command or missing/unnecessary argument(s)!"},
+            {"close", "Have a nice day!"},
+    };
+
+    //Amounts and the fixed-point values they are read as, or why they are refused
+    private static final Object[][] AMOUNTS = {
+            {"0", 0L},
+            {"-0", 0L},
+            {"+1.5", 1_500_000L},
+            {"1.", 1_000_000L},
+            {".5", 500_000L},
+            {"0000000000000000000000001.25", 1_250_000L},
+            {"0.0000005", 0L},
+            {"0.0000015", 2L},
+            {"0.0000025", 2L},
+            {"-0.0000025", -2L},
+            {"0.00000250000000000000000001", 3L},
+            {"1e6", 1_000_000_000_000L},
+            {"1.5E-6", 2L},
+            {"5e-7", 0L},
+            {"1e-9999", 0L},
+            {"0e99999", 0L},
+            {"9223372036854.775807", Long.MAX_VALUE},
+            //Refused like in a frame, as a Transfer could not take it from the sender
+            {"-9223372036854.775808", CommandParser.Amount.OUT_OF_RANGE},
+            {"-9223372036854.7758075", CommandParser.Amount.OUT_OF_RANGE},
+            {"-9223372036854.7758074", -Long.MAX_VALUE},
+            {"9223372036854.7758074", Long.MAX_VALUE},
+            {"123456789012345678.9e-6", 123_456_789_012_345_679L},
+            {"9223372036854.775808", CommandParser.Amount.OUT_OF_RANGE},
+            {"-9223372036854.775809", CommandParser.Amount.OUT_OF_RANGE},
+            {"1e13", CommandParser.Amount.OUT_OF_RANGE},
+            {"1e9999", CommandParser.Amount.OUT_OF_RANGE},
+            {"99999999999999999999", CommandParser.Amount.OUT_OF_RANGE},
+            {".", CommandParser.Amount.NOT_A_NUMBER},
+            {"-", CommandParser.Amount.NOT_A_NUMBER},
+            {"1e", CommandParser.Amount.NOT_A_NUMBER},
+            {"e5", CommandParser.Amount.NOT_A_NUMBER},
+            {"1e+", CommandParser.Amount.NOT_A_NUMBER},
+            {"--1", CommandParser.Amount.NOT_A_NUMBER},
+            {"1.2.3", CommandParser.Amount.NOT_A_NUMBER},
+            {"0x10", CommandParser.Amount.NOT_A_NUMBER},
+            {"NaN", CommandParser.Amount.NOT_A_NUMBER},
+    };
+    //The same numbers on every run, so a failure can be repeated
+    private static final long SEED = 20_261_017;
+    private static final int ROUNDS = 20_000;
+
+    static void run() throws Exception {
+        parity();
+        amounts();
+        randomAmounts();
+    }
+
+    /**
+     * Runs every line of {@link #PARITY} and compares the responses.
+     */
+    private static void parity() throws Exception {
+        CommandParser command = new CommandParser();
+        Admission.Limiter limiter = Admission.newLimiter();
+        for (String[] row : PARITY) {
+            StringWriter text = new StringWriter();
+            TextResponse out = new TextResponse(new PrintWriter(text));
+            Server.Talk.execute(command, row[0], out, limiter);
+            out.flush();
+            String response = text.toString().replace(System.lineSeparator(), "\n").trim();
+            Check.equal("response to \"" + row[0] + "\"", row[1], response);
+        }
+    }
+
+    /**
+     * Reads every amount of {@link #AMOUNTS} as a rate, and as both amounts of a Convert.
+     */
+    private static void amounts() {
+        CommandParser command = new CommandParser();
+        for (Object[] row : AMOUNTS) {
+            String amount = (String) row[0];
+            command.parse("rate " + amount);
+            Check.equal("rate " + amount, row[1], read(command, command.getRate()));
+            command.parse("convert 1 (" + amount + "," + amount + ")");
+            Check.equal("convert arian " + amount, row[1], read(command, command.getArian()));
+            Check.equal("convert pres " + amount, row[1], read(command, command.getPres()));
+        }
+    }
+
+    /**
+     * Reads random plain decimal numbers and checks them against BigDecimal, reporting only the first
+     * mismatch.
+     */
+    private static void randomAmounts() {
+        CommandParser command = new CommandParser();
+        Random random = new Random(SEED);
+        String first = null;
+        for (int i = 0; i < ROUNDS && first == null; i++) {
+            String amount = randomAmount(random);
+            Object expected;
+            try {
+                long value = Fixed.of(new BigDecimal(amount));
+                expected = value == Long.MIN_VALUE ? CommandParser.Amount.OUT_OF_RANGE : value;
+            } catch (ArithmeticException e) {
+                expected = CommandParser.Amount.OUT_OF_RANGE;
+            }
+            command.parse("rate " + amount);
+            if (!expected.equals(read(command, command.getRate()))) {
+                first = amount;
+            }
+        }
+        Check.equal("first random amount read wrong", null, first);
+    }
+
+    /**
+     * Makes up a decimal number: a sign, up to 24 digits with leading zeros now and then, a fraction and an
+     * exponent, each of them maybe left out.
+     */
+    private static String randomAmount(Random random) {
+        StringBuilder amount = new StringBuilder();
+        if (random.nextBoolean()) {
+            amount.append(random.nextBoolean() ? '-' : '+');
+        }
+        int digits = 1 + random.nextInt(random.nextBoolean() ? 6 : 24);
+        for (int i = 0; i < digits; i++) {
+            amount.append(random.nextInt(4) == 0 ? '0' : (char) ('0' + random.nextInt(10)));
+        }
+        if (random.nextBoolean()) {
+            amount.insert(amount.length() - random.nextInt(digits + 1), '.');
+        }
+        if (random.nextInt(4) == 0) {
+            amount.append(random.nextBoolean() ? 'e' : 'E');
+            if (random.nextBoolean()) {
+                amount.append(random.nextBoolean() ? '-' : '+');
+            }
+            amount.append(random.nextInt(30));
+        }
+        return amount.toString();
+    }
+
+    /**
+     * Retrieves what the last line parsed was read as.
+     *
+     * @param value The value read, if the amount was read.
+     * @return The value, or the reason the amount was refused.
+     */
+    private static Object read(CommandParser command, long value) {
+        return command.getAmount() == CommandParser.Amount.OK ? (Object) value : command.getAmount();
+    }
+}
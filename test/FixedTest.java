@@ -0,0 +1,174 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * This class checks the fixed-point arithmetic of {@link Fixed}: that divisions round halves to the even
+ * neighbour, that results too large for a long fail instead of wrapping around, and that values are
+ * written back exactly. Besides the edge cases, random operands are checked against BigDecimal, which
+ * works the same results out the slow way.
+ */
+class FixedTest {
+    //The same numbers on every run, so a failure can be repeated
+    private static final long SEED = 20_261_017;
+    private static final int ROUNDS = 100_000;
+
+    static void run() {
+        canAdd();
+        divide();
+        convert();
+        format();
+        of();
+        random();
+    }
+
+    private static void canAdd() {
+        Check.that("canAdd(MAX, 0)", Fixed.canAdd(Long.MAX_VALUE, 0));
+        Check.that("canAdd(MIN, MAX)", Fixed.canAdd(Long.MIN_VALUE, Long.MAX_VALUE));
+        Check.that("not canAdd(MAX, 1)", !Fixed.canAdd(Long.MAX_VALUE, 1));
+        Check.that("not canAdd(MIN, -1)", !Fixed.canAdd(Long.MIN_VALUE, -1));
+        Check.that("not canAdd(-1, MIN)", !Fixed.canAdd(-1, Long.MIN_VALUE));
+    }
+
+    private static void divide() {
+        Check.equal("divide(5, 2)", 2L, Fixed.divide(5, 2));
+        Check.equal("divide(7, 2)", 4L, Fixed.divide(7, 2));
+        Check.equal("divide(-5, 2)", -2L, Fixed.divide(-5, 2));
+        Check.equal("divide(-7, 2)", -4L, Fixed.divide(-7, 2));
+        Check.equal("divide(2, 3)", 1L, Fixed.divide(2, 3));
+        Check.equal("divide(-1, 3)", 0L, Fixed.divide(-1, 3));
+        Check.equal("divide(MAX, 2)", 4611686018427387904L, Fixed.divide(Long.MAX_VALUE, 2));
+        Check.equal("divide(MIN, 2)", -4611686018427387904L, Fixed.divide(Long.MIN_VALUE, 2));
+        Check.equal("divide(MIN, MAX)", -1L, Fixed.divide(Long.MIN_VALUE, Long.MAX_VALUE));
+        Check.equal("divide(MAX, MAX)", 1L, Fixed.divide(Long.MAX_VALUE, Long.MAX_VALUE));
+        //The remainder is more than half of the divisor, which doubling it would overflow to tell
+        Check.equal("divide(MAX - 1, MAX / 2 + 1)", 2L, Fixed.divide(Long.MAX_VALUE - 1, Long.MAX_VALUE / 2 + 1));
+    }
+
+    private static void convert() {
+        long half = Fixed.ONE / 2;
+        Check.equal("toPres(3, 10)", 30 * Fixed.ONE, Fixed.toPres(3 * Fixed.ONE, 10 * Fixed.ONE));
+        Check.equal("toPres(0.000001, 0.5)", 0L, Fixed.toPres(1, half));
+        Check.equal("toPres(0.000003, 0.5)", 2L, Fixed.toPres(3, half));
+        Check.equal("toPres(-0.000003, 0.5)", -2L, Fixed.toPres(-3, half));
+        Check.equal("toPres(0.000005, 0.5)", 2L, Fixed.toPres(5, half));
+        //The product does not fit in a long, the result does
+        Check.equal("toPres(MAX / 2, 2)", Long.MAX_VALUE - 1, Fixed.toPres(Long.MAX_VALUE / 2, 2 * Fixed.ONE));
+        Check.overflows("toPres(MAX, 2)", () -> Fixed.toPres(Long.MAX_VALUE, 2 * Fixed.ONE));
+        Check.overflows("toPres(MIN, -1)", () -> Fixed.toPres(Long.MIN_VALUE, -Fixed.ONE));
+
+        Check.equal("toArian(1, 3)", 333333L, Fixed.toArian(Fixed.ONE, 3 * Fixed.ONE));
+        Check.equal("toArian(2, 3)", 666667L, Fixed.toArian(2 * Fixed.ONE, 3 * Fixed.ONE));
+        Check.equal("toArian(0.000001, 2)", 0L, Fixed.toArian(1, 2 * Fixed.ONE));
+        Check.equal("toArian(0.000003, 2)", 2L, Fixed.toArian(3, 2 * Fixed.ONE));
+        Check.equal("toArian(-0.000003, 2)", -2L, Fixed.toArian(-3, 2 * Fixed.ONE));
+        Check.equal("toArian(MAX, 1)", Long.MAX_VALUE, Fixed.toArian(Long.MAX_VALUE, Fixed.ONE));
+        Check.equal("toArian(MIN, 1)", Long.MIN_VALUE, Fixed.toArian(Long.MIN_VALUE, Fixed.ONE));
+        Check.overflows("toArian(MAX, 0.000001)", () -> Fixed.toArian(Long.MAX_VALUE, 1));
+        Check.overflows("toArian(10000000, 0.000001)", () -> Fixed.toArian(10_000_000 * Fixed.ONE, 1));
+    }
+
+    private static void format() {
+        Check.equal("format 0", "0.0", Fixed.toString(0));
+        Check.equal("format 1", "1.0", Fixed.toString(Fixed.ONE));
+        Check.equal("format 10", "10.0", Fixed.toString(10 * Fixed.ONE));
+        Check.equal("format 1.5", "1.5", Fixed.toString(1_500_000));
+        Check.equal("format -0.125", "-0.125", Fixed.toString(-125_000));
+        Check.equal("format 0.000005", "0.000005", Fixed.toString(5));
+        Check.equal("format -0.000001", "-0.000001", Fixed.toString(-1));
+        Check.equal("format 100.000001", "100.000001", Fixed.toString(100_000_001));
+        Check.equal("format MAX", "9223372036854.775807", Fixed.toString(Long.MAX_VALUE));
+        Check.equal("format MIN", "-9223372036854.775808", Fixed.toString(Long.MIN_VALUE));
+        Check.equal("MAX_LENGTH", Fixed.MAX_LENGTH, Fixed.toString(Long.MIN_VALUE).length());
+    }
+
+    private static void of() {
+        Check.equal("of 0.0000005", 0L, Fixed.of(new BigDecimal("0.0000005")));
+        Check.equal("of 0.0000015", 2L, Fixed.of(new BigDecimal("0.0000015")));
+        Check.equal("of -0.0000025", -2L, Fixed.of(new BigDecimal("-0.0000025")));
+        Check.equal("of 1E-30", 0L, Fixed.of(new BigDecimal("1E-30")));
+        Check.equal("of 0E+99", 0L, Fixed.of(new BigDecimal("0E+99")));
+        Check.equal("of MAX", Long.MAX_VALUE, Fixed.of(new BigDecimal("9223372036854.775807")));
+        Check.equal("of MIN", Long.MIN_VALUE, Fixed.of(new BigDecimal("-9223372036854.775808")));
+        Check.overflows("of MAX + 0.000001", () -> Fixed.of(new BigDecimal("9223372036854.775808")));
+        Check.overflows("of 1E+999999999", () -> Fixed.of(new BigDecimal("1E+999999999")));
+    }
+
+    /**
+     * Checks random operands against BigDecimal, reporting only the first mismatch of every operation.
+     */
+    private static void random() {
+        Random random = new Random(SEED);
+        String divide = null;
+        String toPres = null;
+        String toArian = null;
+        String format = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            long a = operand(random);
+            long b = operand(random);
+            long divisor = Math.max(1, Math.abs(b));
+            if (divide == null && !same(reference(BigInteger.valueOf(a), BigInteger.valueOf(divisor)),
+                    () -> Fixed.divide(a, divisor))) {
+                divide = a + ", " + divisor;
+            }
+            if (toPres == null && !same(reference(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)),
+                    BigInteger.valueOf(Fixed.ONE)), () -> Fixed.toPres(a, b))) {
+                toPres = a + ", " + b;
+            }
+            if (toArian == null && !same(reference(BigInteger.valueOf(a).multiply(BigInteger.valueOf(Fixed.ONE)),
+                    BigInteger.valueOf(divisor)), () -> Fixed.toArian(a, divisor))) {
+                toArian = a + ", " + divisor;
+            }
+            if (format == null && new BigDecimal(Fixed.toString(a)).compareTo(BigDecimal.valueOf(a, 6)) != 0) {
+                format = Long.toString(a);
+            }
+        }
+        Check.equal("first random divide off", null, divide);
+        Check.equal("first random toPres off", null, toPres);
+        Check.equal("first random toArian off", null, toArian);
+        Check.equal("first random format off", null, format);
+    }
+
+    /**
+     * Picks a random operand, often a small one or one close to the limits, where rounding and overflow
+     * happen.
+     */
+    private static long operand(Random random) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return random.nextInt(2001) - 1000;
+            case 1:
+                return (random.nextBoolean() ? Long.MAX_VALUE : Long.MIN_VALUE) - (random.nextInt(1001) - 500);
+            case 2:
+                return random.nextInt();
+            default:
+                return random.nextLong();
+        }
+    }
+
+    /**
+     * Works a quotient out with BigDecimal.
+     *
+     * @return The quotient rounded like {@link Fixed#divide}, or null if it does not fit in a long.
+     */
+    private static Long reference(BigInteger dividend, BigInteger divisor) {
+        BigInteger q = new BigDecimal(dividend).divide(new BigDecimal(divisor), 0, RoundingMode.HALF_EVEN)
+                .toBigIntegerExact();
+        return q.bitLength() < Long.SIZE ? q.longValue() : null;
+    }
+
+    /**
+     * Checks that an operation gives the expected value, or fails with an ArithmeticException if expected
+     * is null.
+     */
+    private static boolean same(Long expected, LongSupplier operation) {
+        try {
+            long actual = operation.getAsLong();
+            return expected != null && expected == actual;
+        } catch (ArithmeticException e) {
+            return expected == null;
+        }
+    }
+}
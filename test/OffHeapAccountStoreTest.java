@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class checks the off-heap account store: that an opening finding its account already there gives
+ * its room back, that accounts are listed in order however they were opened, that a snapshot keeps reading
+ * the balances it was taken with while accounts change, also when a change of an earlier epoch arrives
+ * after one of a later epoch, that the balances kept for a snapshot are dropped once it is released, and
+ * that a Convert without locks waits for the command holding the account's lock.
+ */
+class OffHeapAccountStoreTest {
+    private static final int WRITERS = 4;
+    private static final int SNAPSHOTS = 200;
+
+    static void run() throws Exception {
+        capacity();
+        claims();
+        order();
+        behind();
+        slotVersions();
+        released();
+        snapshots();
+        addUnlocked();
+    }
+
+    private static void capacity() {
+        Check.that("capacity 1", new OffHeapAccountStore(1).claim());
+        refused("capacity 0", 0);
+        refused("capacity 2^30", 1 << 30);
+    }
+
+    private static void refused(String what, int capacity) {
+        try {
+            new OffHeapAccountStore(capacity);
+            Check.that(what + " refused", false);
+        } catch (IllegalArgumentException e) {
+            Check.that(what + " refused", true);
+        }
+    }
+
+    private static void claims() {
+        OffHeapAccountStore store = new OffHeapAccountStore(2);
+        Check.that("claim for 1", store.claim());
+        Check.that("open 1", store.open(1, 1));
+        Check.that("claim for 1 again", store.claim());
+        Check.that("open 1 again", !store.open(1, 1));
+        Check.that("restore 1", !store.restore(1, 0, 0));
+        //Neither duplicate kept its room, so there is room for a second account
+        Check.that("claim for 2", store.claim());
+        Check.that("open 2", store.open(2, 1));
+        Check.that("claim when full", !store.claim());
+        try {
+            store.restore(3, 0, 0);
+            Check.that("restore when full", false);
+        } catch (IllegalStateException e) {
+            Check.that("restore when full", true);
+        }
+    }
+
+    /**
+     * Opens accounts in a shuffled order, listing them after each round, so the listings cover numbers still
+     * waiting to be merged as well as several merges into the ordered run.
+     */
+    private static void order() throws Exception {
+        int accounts = 20_000;
+        List<Integer> numbers = new ArrayList<>();
+        for (int accNum = 1; accNum <= accounts; accNum++) {
+            numbers.add(accNum * 7);
+        }
+        Collections.shuffle(numbers, new Random(42));
+        OffHeapAccountStore store = new OffHeapAccountStore(accounts);
+        boolean sorted = true;
+        for (int opened = 0; opened < accounts; ) {
+            for (int end = Math.min(accounts, opened + 1500); opened < end; opened++) {
+                store.claim();
+                store.open(numbers.get(opened), 1);
+            }
+            List<Integer> listed = new ArrayList<>();
+            store.forEach(1, (accNum, arian, pres) -> listed.add(accNum));
+            List<Integer> expected = new ArrayList<>(numbers.subList(0, opened));
+            Collections.sort(expected);
+            sorted &= listed.equals(expected);
+        }
+        Check.that("accounts listed in order", sorted);
+    }
+
+    /**
+     * Checks the balances of every snapshot when a change of epoch 2 arrives after one of epoch 3, while a
+     * snapshot of epoch 2 is being taken.
+     */
+    private static void behind() throws Exception {
+        OffHeapAccountStore store = new OffHeapAccountStore(4);
+        store.claim();
+        store.open(1, 1);
+        store.add(1, Fixed.ONE, 2 * Fixed.ONE, 3, 2);
+        store.add(1, 10 * Fixed.ONE, 20 * Fixed.ONE, 2, 2);
+        Check.equal("snapshot 1", List.of(0L, 0L), balances(store, 1));
+        Check.equal("snapshot 2", List.of(10 * Fixed.ONE, 20 * Fixed.ONE), balances(store, 2));
+        Check.equal("snapshot 3", List.of(11 * Fixed.ONE, 22 * Fixed.ONE), balances(store, 3));
+    }
+
+    /**
+     * Puts and removes random slots in the map of older balances and compares it with a HashMap.
+     */
+    private static void slotVersions() {
+        SlotVersions versions = new SlotVersions();
+        Map<Integer, Account.Balance> expected = new HashMap<>();
+        Random random = new Random(7);
+        boolean same = true;
+        for (int i = 0; i < 100_000; i++) {
+            int slot = random.nextInt(2_000);
+            if (random.nextInt(3) == 0) {
+                versions.remove(slot);
+                expected.remove(slot);
+            } else {
+                Account.Balance v = new Account.Balance(i, 0, i, null);
+                versions.put(slot, v);
+                expected.put(slot, v);
+            }
+            int probe = random.nextInt(2_000);
+            same &= versions.get(probe) == expected.get(probe);
+        }
+        Check.that("slot versions match a HashMap", same);
+        int[] slots = versions.slots();
+        Arrays.sort(slots);
+        Check.equal("slots listed", new TreeSet<>(expected.keySet()).toString(), Arrays.toString(slots));
+        for (int slot : slots) {
+            versions.remove(slot);
+        }
+        Check.that("slot versions empty", versions.isEmpty());
+    }
+
+    /**
+     * Changes accounts while a snapshot is read, releases it and checks that the balances kept for it are
+     * dropped without changing what the next snapshot reads.
+     */
+    private static void released() throws Exception {
+        OffHeapAccountStore store = new OffHeapAccountStore(4);
+        EpochGate epochs = new EpochGate();
+        store.claim();
+        store.open(1, epochs.current());
+        long first = epochs.snapshot();
+        long e = epochs.enter();
+        store.add(1, Fixed.ONE, 0, e, epochs.oldestSnapshot());
+        epochs.exit(e);
+        Check.equal("snapshot before the change", List.of(0L, 0L), balances(store, first));
+        epochs.release(first);
+        store.released(epochs::oldestSnapshot);
+        long second = epochs.snapshot();
+        Check.equal("snapshot after the sweep", List.of(Fixed.ONE, 0L), balances(store, second));
+        epochs.release(second);
+        store.released(epochs::oldestSnapshot);
+    }
+
+    /**
+     * Moves amounts from account 1 to account 2 from several threads while snapshots are taken. Every snapshot
+     * must see both halves of a move or neither, and must read the same balances again after more moves.
+     */
+    private static void snapshots() throws Exception {
+        OffHeapAccountStore store = new OffHeapAccountStore(4);
+        EpochGate epochs = new EpochGate();
+        for (int accNum = 1; accNum <= 2; accNum++) {
+            store.claim();
+            store.open(accNum, epochs.current());
+        }
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong moves = new AtomicLong();
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < WRITERS; i++) {
+            Thread writer = new Thread(() -> {
+                while (!stop.get()) {
+                    long e = epochs.enter();
+                    store.add(1, -1, -2, e, epochs.oldestSnapshot());
+                    store.add(2, 1, 2, e, epochs.oldestSnapshot());
+                    epochs.exit(e);
+                    moves.incrementAndGet();
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        String torn = null;
+        String changed = null;
+        try {
+            for (int i = 0; i < SNAPSHOTS && torn == null && changed == null; i++) {
+                long snapshot = epochs.snapshot();
+                try {
+                    List<Long> first = balances(store, snapshot);
+                    if (first.get(0) + first.get(2) != 0 || first.get(1) + first.get(3) != 0) {
+                        torn = first.toString();
+                    }
+                    //Let the writers replace the balances the snapshot reads
+                    for (long m = moves.get(); moves.get() < m + 10; ) {
+                        Thread.onSpinWait();
+                    }
+                    List<Long> again = balances(store, snapshot);
+                    if (!first.equals(again)) {
+                        changed = first + " then " + again;
+                    }
+                } finally {
+                    epochs.release(snapshot);
+                }
+            }
+        } finally {
+            stop.set(true);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        Check.equal("first snapshot with half a move", null, torn);
+        Check.equal("first snapshot changed by later moves", null, changed);
+    }
+
+    /**
+     * Checks that a change without locks waits while another thread holds the account's lock, and that it is
+     * logged only if it stays in range and made only if the log takes it.
+     */
+    private static void addUnlocked() throws Exception {
+        OffHeapAccountStore store = new OffHeapAccountStore(4);
+        store.claim();
+        store.open(1, 1);
+        store.lock(1);
+        Thread convert = new Thread(() -> {
+            try {
+                store.addUnlocked(1, Fixed.ONE, -Fixed.ONE, 1, Long.MAX_VALUE, () -> 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        convert.start();
+        convert.join(100);
+        Check.that("addUnlocked waits for the lock", convert.isAlive());
+        Check.equal("balances while locked", List.of(0L, 0L), balances(store, 1));
+        store.unlock(1);
+        convert.join(10_000);
+        Check.that("addUnlocked done once unlocked", !convert.isAlive());
+        Check.equal("balances once unlocked", List.of(Fixed.ONE, -Fixed.ONE), balances(store, 1));
+        try {
+            store.addUnlocked(1, Fixed.ONE, 0, 1, Long.MAX_VALUE, () -> {
+                throw new IOException("log failed");
+            });
+            Check.that("addUnlocked fails with the log", false);
+        } catch (IOException e) {
+            Check.that("addUnlocked fails with the log", true);
+        }
+        Check.equal("balances after the log failed", List.of(Fixed.ONE, -Fixed.ONE), balances(store, 1));
+        AtomicBoolean logged = new AtomicBoolean();
+        try {
+            store.addUnlocked(1, Long.MAX_VALUE, 0, 1, Long.MAX_VALUE, () -> {
+                logged.set(true);
+                return 0;
+            });
+            Check.that("change out of range refused", false);
+        } catch (ArithmeticException e) {
+            Check.that("change out of range not logged", !logged.get());
+        }
+    }
+
+    /**
+     * Lists the balances of every account in a snapshot.
+     *
+     * @return Arian and pres of every account, in account number order.
+     */
+    private static List<Long> balances(OffHeapAccountStore store, long snapshot) throws Exception {
+        List<Long> balances = new ArrayList<>();
+        store.forEach(snapshot, (accNum, arian, pres) -> {
+            balances.add(arian);
+            balances.add(pres);
+        });
+        return balances;
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs a server in a JVM of its own, for tests needing a server set up with system properties,
+ * or one which is stopped and started again. The server's settings are read once, when its class is
+ * loaded, so they cannot be changed within the JVM running the tests. Clients talk to it over sockets,
+ * one line at a time, the way brokers do.
+ */
+final class ServerProcess {
+    //How long a server may take to start accepting connections
+    private static final long START_MILLIS = 10_000;
+
+    private final Process process;
+    private final int port;
+
+    private ServerProcess(Process process, int port) {
+        this.process = process;
+        this.port = port;
+    }
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @param properties System properties for the server, such as "server.shards=2".
+     * @return The server, once it accepts connections.
+     */
+    static ServerProcess start(String... properties) throws IOException, InterruptedException {
+        int port = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dserver.port=" + port);
+        command.add("-Dserver.logLevel=off");
+        for (String property : properties) {
+            command.add("-D" + property);
+        }
+        command.add("Server");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        ServerProcess server = new ServerProcess(process, port);
+        long deadline = System.currentTimeMillis() + START_MILLIS;
+        while (true) {
+            try {
+                //Only whether the server accepts connections matters
+                new Socket("localhost", port).close();
+                return server;
+            } catch (IOException e) {
+                if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+                    process.destroyForcibly();
+                    throw new IOException("Server did not start with " + String.join(" ", properties), e);
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+
+    /**
+     * Finds a port no server listens on.
+     *
+     * @return The port number.
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Connects a client to the server.
+     *
+     * @return The client.
+     */
+    Client connect() throws IOException {
+        return new Client(new Socket("localhost", port));
+    }
+
+    /**
+     * Stops the server at once, as a crash would.
+     */
+    void kill() throws InterruptedException {
+        process.destroyForcibly();
+        process.waitFor(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * A connection to the server.
+     */
+    static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        private Client(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout((int) START_MILLIS);
+            out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Sends a command answered by a single line.
+         *
+         * @param line The command.
+         * @return The response.
+         */
+        String send(String line) throws IOException {
+            out.println(line);
+            return in.readLine();
+        }
+
+        /**
+         * Sends State.
+         *
+         * @return Every line of the response, up to and including the rate, joined with "\n".
+         */
+        String state() throws IOException {
+            out.println("state");
+            StringBuilder state = new StringBuilder();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                state.append(line);
+                if (line.startsWith("Rate")) {
+                    return state.toString();
+                }
+                state.append('\n');
+            }
+            throw new IOException("Connection closed in the middle of State");
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
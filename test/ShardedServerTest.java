@@ -0,0 +1,129 @@
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class checks that a sharded server changes the accounts exactly as a server locking them does.
+ * Accounts 1 and 3 fall into one of two shards and accounts 2 and 4 into the other, so the commands below
+ * span both shards, and those taking a balance out of range do so on one shard only. They must be refused
+ * on both, leaving the other shard's accounts as they were. Then many clients move amounts near the limits
+ * between the accounts at once; as no money is made or lost, the balances must still add up to 0.
+ */
+class ShardedServerTest {
+    private static final String OUT_OF_RANGE =
+            "Amount out of range! No amount or balance can go beyond 9223372036854.775807.";
+
+    //Lines and the responses they get, run in this order
+    private static final String[][] COMMANDS = {
+            {"open 1", "Opened account 1"},
+            {"open 2", "Opened account 2"},
+            {"open 3", "Opened account 3"},
+            {"open 4", "Opened account 4"},
+            {"transfer 1 2 (9000000000000,0)", "Transferred"},
+            {"transfer 2 1 (0,-9000000000000)", "Transferred"},
+            //Account 2 would go beyond the largest balance; account 3 would be fine
+            {"transfer 3 2 (300000000000,0)", OUT_OF_RANGE},
+            //Account 1 would go below the smallest balance; account 4 would be fine
+            {"transfer 1 4 (300000000000,0)", OUT_OF_RANGE},
+            {"batch transfer 3 4 (1,1); transfer 4 2 (300000000000,0)", OUT_OF_RANGE},
+            {"batch transfer 3 4 (1,1); transfer 2 3 (5,0); convert 4 (0,10)", "Batch applied (3 legs)"},
+            {"convert 2 (0,-300000000000)", OUT_OF_RANGE},
+            {"convert 3 (1,0)", "Converted at rate 10.0 (version 0)"},
+    };
+    private static final String STATE = "1: Arian -9000000000000.0, Pres -9000000000000.0\n"
+            + "2: Arian 8999999999995.0, Pres 9000000000000.0\n"
+            + "3: Arian 3.0, Pres 9.0\n"
+            + "4: Arian 2.0, Pres -9.0\n"
+            + "Rate 10.0";
+    private static final int CLIENTS = 8;
+    private static final int COMMANDS_PER_CLIENT = 400;
+    private static final String LARGE = "(2000000000000,2000000000000)";
+
+    static void run() throws Exception {
+        check("server.shards=2");
+        check("server.shards=2", "server.store=offheap");
+        //The locked path the sharded one must agree with
+        check("server.shards=0");
+    }
+
+    private static void check(String... properties) throws Exception {
+        String mode = String.join(" ", properties);
+        ServerProcess server = ServerProcess.start(properties);
+        try (ServerProcess.Client client = server.connect()) {
+            for (String[] row : COMMANDS) {
+                Check.equal(mode + ": response to \"" + row[0] + "\"", row[1], client.send(row[0]));
+            }
+            Check.equal(mode + ": state", STATE, client.state());
+            concurrent(server, mode);
+            BigDecimal[] sums = sums(client.state());
+            Check.equal(mode + ": sum of arian", 0, sums[0].signum());
+            Check.equal(mode + ": sum of pres", 0, sums[1].signum());
+        } finally {
+            server.kill();
+        }
+    }
+
+    /**
+     * Runs Transfers and Batches of large amounts from several clients at once. Their Converts of (x, 10x)
+     * at rate 10 leave the balances as they are, so they change neither sum either.
+     */
+    private static void concurrent(ServerProcess server, String mode) throws Exception {
+        AtomicReference<String> unexpected = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            Random random = new Random(c);
+            Thread thread = new Thread(() -> {
+                try (ServerProcess.Client client = server.connect()) {
+                    for (int i = 0; i < COMMANDS_PER_CLIENT; i++) {
+                        int a = 1 + random.nextInt(4);
+                        int b = 1 + (a + random.nextInt(3)) % 4;
+                        String line;
+                        switch (random.nextInt(3)) {
+                            case 0:
+                                line = "transfer " + a + " " + b + " " + LARGE;
+                                break;
+                            case 1:
+                                line = "batch transfer " + a + " " + b + " " + LARGE + "; transfer " + b + " "
+                                        + (1 + b % 4) + " " + LARGE + "; convert " + a + " (1000000000,10000000000)";
+                                break;
+                            default:
+                                line = "convert " + a + " (2000000000,20000000000)";
+                        }
+                        String response = client.send(line);
+                        if (response == null || !(response.equals("Transferred") || response.startsWith("Batch applied")
+                                || response.startsWith("Converted") || response.equals(OUT_OF_RANGE))) {
+                            unexpected.compareAndSet(null, line + " -> " + response);
+                        }
+                    }
+                } catch (Exception e) {
+                    unexpected.compareAndSet(null, e.toString());
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Check.equal(mode + ": first unexpected response", null, unexpected.get());
+    }
+
+    /**
+     * Adds up the balances listed by State.
+     *
+     * @return The sums of arian and of pres.
+     */
+    private static BigDecimal[] sums(String state) {
+        BigDecimal[] sums = {BigDecimal.ZERO, BigDecimal.ZERO};
+        for (String line : state.split("\n")) {
+            if (!line.startsWith("Rate")) {
+                String[] parts = line.split("[ ,]+");
+                sums[0] = sums[0].add(new BigDecimal(parts[2]));
+                sums[1] = sums[1].add(new BigDecimal(parts[4]));
+            }
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class checks that a command spanning several shards is committed, i.e. logged, before any command a
+ * shard runs after it, even when another shard is slow to apply its part. Otherwise a later command on one
+ * of its accounts could reach the log first, and a replay would apply the two in the other order.
+ */
+class ShardsTest {
+    static void run() throws Exception {
+        commitOrder();
+        refusal();
+    }
+
+    private static void commitOrder() throws Exception {
+        Shards shards = new Shards(2);
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch firstApplied = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread spanning = new Thread(() -> {
+            try {
+                shards.run(new Shards.Task() {
+                    @Override
+                    void apply(int shard) {
+                        if (shard == 0) {
+                            firstApplied.countDown();
+                        } else {
+                            //Shard 1 is slow, while shard 0 goes on with the next command
+                            await(release);
+                        }
+                    }
+
+                    @Override
+                    long commit() {
+                        commits.add("spanning");
+                        return 0;
+                    }
+                }, 0, 1);
+            } catch (Exception e) {
+                commits.add(e.toString());
+            }
+        });
+        spanning.start();
+        await(firstApplied);
+        shards.run(new Shards.Task() {
+            @Override
+            void apply(int shard) {
+            }
+
+            @Override
+            long commit() {
+                commits.add("single");
+                return 0;
+            }
+        }, 0);
+        release.countDown();
+        spanning.join(10_000);
+        Check.equal("commit order", List.of("spanning", "single"), commits);
+    }
+
+    /**
+     * Checks that a command refused by one shard is applied by neither.
+     */
+    private static void refusal() throws Exception {
+        Shards shards = new Shards(2);
+        boolean[] applied = new boolean[2];
+        boolean[] committed = new boolean[1];
+        Check.overflows("refused by shard 1", () -> {
+            try {
+                shards.run(new Shards.Task() {
+                    @Override
+                    boolean check(int shard) {
+                        return shard == 0;
+                    }
+
+                    @Override
+                    void apply(int shard) {
+                        applied[shard] = true;
+                    }
+
+                    @Override
+                    long commit() {
+                        committed[0] = true;
+                        return 0;
+                    }
+                }, 0, 1);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Check.that("refused command not committed", !committed[0]);
+        Check.that("refused command applied by neither shard", !applied[0] && !applied[1]);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+import java.util.Locale;
+
+/**
+ * This program runs every test in this directory and prints how many checks failed. It exits with
+ * status 1 if any did, so it can gate a build.
+ */
+public class Tests {
+    public static void main(String[] args) throws Exception {
+        //Setting US locale to force using '.' as a decimal part separator instead of ','
+        Locale.setDefault(new Locale("en", "US"));
+        FixedTest.run();
+        CommandParserTest.run();
+        TransactionLogTest.run();
+        OffHeapAccountStoreTest.run();
+        ShardsTest.run();
+        ShardedServerTest.run();
+        System.out.println(Check.getChecks() + " checks, " + Check.getFailures() + " failed");
+        if (Check.getFailures() > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * This class checks that the transaction log gives back the changes recorded in it, and that a Batch cut
+ * short by a crash is dropped as a whole: none of its legs is replayed and the file is cut back to just
+ * before it, so the changes recorded after the restart follow the last complete record. It also checks
+ * that with Sync.ALWAYS changes reach the file when they are awaited, also by many threads at once.
+ */
+class TransactionLogTest {
+    private static final long ONE = Fixed.ONE;
+    private static final int THREADS = 8;
+    private static final int CHANGES = 100;
+
+    /**
+     * Writes each change it receives as a line like the command which made it.
+     */
+    private static final class Recorder implements TransactionLog.Handler {
+        private final List<String> changes = new ArrayList<>();
+
+        @Override
+        public void open(int accNum) {
+            changes.add("open " + accNum);
+        }
+
+        @Override
+        public void rate(long rate) {
+            changes.add("rate " + rate);
+        }
+
+        @Override
+        public void convert(int accNum, long arian, long pres, long rate) {
+            changes.add("convert " + accNum + " " + arian + " " + pres + " " + rate);
+        }
+
+        @Override
+        public void transfer(int accFrom, int accTo, long arian, long pres) {
+            changes.add("transfer " + accFrom + " " + accTo + " " + arian + " " + pres);
+        }
+    }
+
+    static void run() throws Exception {
+        Path file = Files.createTempFile("transactions", ".log");
+        try {
+            tornBatch(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        file = Files.createTempFile("transactions", ".log");
+        try {
+            sharedForce(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Records changes from several threads which each await their own, as commands do with Sync.ALWAYS,
+     * and checks every one of them is in the file afterwards.
+     */
+    private static void sharedForce(Path file) throws Exception {
+        TransactionLog log = TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, new Recorder());
+        List<Thread> threads = new ArrayList<>();
+        List<Exception> failures = new CopyOnWriteArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int first = t * CHANGES;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i < CHANGES; i++) {
+                        log.await(log.open(1, first + i));
+                    }
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Check.equal("changes awaited without failing", List.of(), failures);
+        Recorder replayed = new Recorder();
+        TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, replayed);
+        Check.equal("changes awaited from several threads", THREADS * CHANGES, replayed.changes.size());
+    }
+
+    private static void tornBatch(Path file) throws Exception {
+        TransactionLog log = TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, new Recorder());
+        log.open(1, 1);
+        log.open(1, 2);
+        long beforeBatch = log.transfer(1, 1, 2, ONE, 2 * ONE);
+        Batch batch = new Batch();
+        batch.transfer(2, 1, 3 * ONE, 0);
+        batch.convert(2, ONE, 0);
+        long afterBatch = log.batch(2, batch, 10 * ONE);
+        long end = log.rate(2, 5 * ONE);
+        //Appending leaves the disk to whoever awaits the changes, once its accounts are unlocked
+        Check.equal("nothing written before the changes are awaited", 0L, Files.size(file));
+        log.await(end);
+        Check.equal("every change written once awaited", end, Files.size(file));
+        List<String> recorded = Arrays.asList("open 1", "open 2", "transfer 1 2 1000000 2000000",
+                "transfer 2 1 3000000 0", "convert 2 1000000 0 10000000", "rate 5000000");
+
+        Recorder all = new Recorder();
+        TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, all);
+        Check.equal("changes replayed", recorded, all.changes);
+
+        Recorder newer = new Recorder();
+        TransactionLog.replay(Files.readAllBytes(file), 1, newer);
+        Check.equal("changes after epoch 1", recorded.subList(3, 6), newer.changes);
+
+        //A crash in the middle of the last leg of the Batch
+        byte[] torn = Arrays.copyOf(Files.readAllBytes(file), (int) afterBatch - 3);
+        try {
+            TransactionLog.replay(torn, 0, new Recorder());
+            Check.that("records cut short from a primary are refused", false);
+        } catch (IOException e) {
+            Check.that("records cut short from a primary are refused", true);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(torn.length);
+        }
+        Recorder restarted = new Recorder();
+        TransactionLog reopened = TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, restarted);
+        Check.equal("changes replayed without the torn Batch", recorded.subList(0, 3), restarted.changes);
+        Check.equal("log cut back to before the Batch", beforeBatch, Files.size(file));
+
+        //Changes recorded after the restart are replayed after the last complete record
+        reopened.await(reopened.rate(3, 7 * ONE));
+        Recorder again = new Recorder();
+        TransactionLog.open(file, TransactionLog.Sync.ALWAYS, 0, 0, 0, again);
+        Check.equal("changes replayed after the restart", Arrays.asList("open 1", "open 2",
+                "transfer 1 2 1000000 2000000", "rate 7000000"), again.changes);
+    }
+}